@@ -0,0 +1,334 @@
+package com.github.forax.patterntree;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.reflect.RecordComponent;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import static java.util.Objects.requireNonNull;
+
+// The binary encoding of a graph of records in a ByteBuffer, used by BinaryMatcher to match a record
+// without creating it. A value is referenced by its offset in the buffer, -1 being null.
+//
+// A record is encoded as an int tag (the index of the record type in the layout) followed by its components:
+// - a boolean or a byte is 1 byte, a short or a char 2 bytes, an int or a float 4 bytes, a long or a double 8 bytes,
+// - an enum is the int ordinal of the constant, -1 for null,
+// - a String or a record is the int offset of the value,
+// a String is encoded as the int number of bytes followed by the bytes in UTF-8.
+// The components of a record must be of one of those types, an interface is a reference to a record.
+public final class BinaryLayout {
+  private final List<Class<?>> recordTypes;
+  private final Map<Class<?>, Integer> tags;
+  private final Map<Class<?>, int[]> offsets;  // the offset of each component from the start of the record
+  private final Map<Class<?>, Integer> sizes;
+  private final Map<Class<?>, MethodHandle> constructors = new HashMap<>();
+
+  private BinaryLayout(List<Class<?>> recordTypes) {
+    this.recordTypes = recordTypes;
+    var tags = new LinkedHashMap<Class<?>, Integer>();
+    var offsets = new HashMap<Class<?>, int[]>();
+    var sizes = new HashMap<Class<?>, Integer>();
+    for(var recordType: recordTypes) {
+      if (!recordType.isRecord()) {
+        throw new IllegalArgumentException(recordType.getName() + " is not a record");
+      }
+      if (tags.putIfAbsent(recordType, tags.size()) != null) {
+        throw new IllegalArgumentException("duplicate record " + recordType.getName());
+      }
+      var components = recordType.getRecordComponents();
+      var componentOffsets = new int[components.length];
+      var offset = Integer.BYTES;  // the tag
+      for(var i = 0; i < components.length; i++) {
+        componentOffsets[i] = offset;
+        offset += size(components[i]);
+      }
+      offsets.put(recordType, componentOffsets);
+      sizes.put(recordType, offset);
+    }
+    this.tags = tags;
+    this.offsets = offsets;
+    this.sizes = sizes;
+  }
+
+  // the tag of a record is its index in the list
+  public static BinaryLayout of(List<Class<? extends Record>> recordTypes) {
+    return new BinaryLayout(List.copyOf(recordTypes));
+  }
+
+  private static int size(RecordComponent component) {
+    var type = component.getType();
+    if (type == boolean.class || type == byte.class) {
+      return 1;
+    }
+    if (type == short.class || type == char.class) {
+      return 2;
+    }
+    if (type == long.class || type == double.class) {
+      return 8;
+    }
+    if (type == int.class || type == float.class || type.isEnum() || type == String.class || type.isRecord() || type.isInterface()) {
+      return 4;
+    }
+    throw new IllegalArgumentException("the component " + component + " of " + component.getDeclaringRecord().getName() + " can not be encoded");
+  }
+
+  public List<Class<?>> recordTypes() {
+    return recordTypes;
+  }
+
+  public int tag(Class<?> recordType) {
+    var tag = tags.get(recordType);
+    if (tag == null) {
+      throw new IllegalArgumentException("no record " + recordType.getName() + " in the layout");
+    }
+    return tag;
+  }
+
+  // the tags of the records of the layout that are subtypes of the type
+  int[] tags(Class<?> type) {
+    return tags.entrySet().stream().filter(e -> type.isAssignableFrom(e.getKey())).mapToInt(Map.Entry::getValue).toArray();
+  }
+
+  // the size of a record without the values it references
+  public int size(Class<?> recordType) {
+    return sizes.get(recordType(tag(recordType)));
+  }
+
+  // the offset of a component from the start of the record
+  public int offset(Class<?> recordType, String componentName) {
+    var components = recordType(tag(recordType)).getRecordComponents();
+    for(var i = 0; i < components.length; i++) {
+      if (components[i].getName().equals(componentName)) {
+        return offsets.get(recordType)[i];
+      }
+    }
+    throw new IllegalArgumentException("no component " + componentName + " in " + recordType.getName());
+  }
+
+  private Class<?> recordType(int tag) {
+    if (tag < 0 || tag >= recordTypes.size()) {
+      throw new IllegalArgumentException("invalid tag " + tag);
+    }
+    return recordTypes.get(tag);
+  }
+
+  // Writes the value (a record of the layout, a String or null) and the values it references
+  // at the position of the buffer, and returns its offset
+  public int write(ByteBuffer buffer, Object value) {
+    requireNonNull(buffer);
+    if (value == null) {
+      return -1;
+    }
+    var start = buffer.position();
+    if (value instanceof String s) {
+      var bytes = s.getBytes(StandardCharsets.UTF_8);
+      buffer.putInt(bytes.length).put(bytes);
+      return start;
+    }
+    var recordType = value.getClass();
+    buffer.putInt(tag(recordType));
+    buffer.position(start + sizes.get(recordType));
+    var components = recordType.getRecordComponents();
+    var componentOffsets = offsets.get(recordType);
+    for(var i = 0; i < components.length; i++) {
+      var component = components[i];
+      Object componentValue;
+      try {
+        componentValue = component.getAccessor().invoke(value);
+      } catch (ReflectiveOperationException e) {
+        throw new IllegalStateException(e);
+      }
+      writeComponent(buffer, start + componentOffsets[i], component.getType(), componentValue);
+    }
+    return start;
+  }
+
+  // the encoding depends on the type of the component, not on the class of the value
+  private void writeComponent(ByteBuffer buffer, int offset, Class<?> type, Object value) {
+    if (type == boolean.class) {
+      buffer.put(offset, (byte) ((boolean) value? 1: 0));
+    } else if (type == byte.class) {
+      buffer.put(offset, (byte) value);
+    } else if (type == short.class) {
+      buffer.putShort(offset, (short) value);
+    } else if (type == char.class) {
+      buffer.putChar(offset, (char) value);
+    } else if (type == int.class) {
+      buffer.putInt(offset, (int) value);
+    } else if (type == float.class) {
+      buffer.putFloat(offset, (float) value);
+    } else if (type == long.class) {
+      buffer.putLong(offset, (long) value);
+    } else if (type == double.class) {
+      buffer.putDouble(offset, (double) value);
+    } else if (value == null) {
+      buffer.putInt(offset, -1);
+    } else if (type.isEnum()) {
+      buffer.putInt(offset, ((Enum<?>) value).ordinal());
+    } else if (type == String.class || value instanceof Record) {
+      buffer.putInt(offset, write(buffer, value));
+    } else {
+      throw new IllegalArgumentException("the value " + value + " of type " + type.getName() + " can not be encoded");
+    }
+  }
+
+  // Creates the value of a type at an offset of the buffer,
+  // a String, a record (the actual record type is given by its tag) or an enum (offset is the ordinal)
+  public Object read(ByteBuffer buffer, int offset, Class<?> type) {
+    requireNonNull(buffer);
+    requireNonNull(type);
+    if (offset == -1) {
+      return null;
+    }
+    if (type.isEnum()) {
+      return type.getEnumConstants()[offset];
+    }
+    if (type == String.class) {
+      var bytes = new byte[buffer.getInt(offset)];
+      buffer.get(offset + Integer.BYTES, bytes);
+      return new String(bytes, StandardCharsets.UTF_8);
+    }
+    var recordType = recordType(buffer.getInt(offset));
+    if (!type.isAssignableFrom(recordType)) {
+      throw new IllegalArgumentException("the record " + recordType.getName() + " at " + offset + " is not a " + type.getName());
+    }
+    var components = recordType.getRecordComponents();
+    var componentOffsets = offsets.get(recordType);
+    var values = new Object[components.length];
+    for(var i = 0; i < components.length; i++) {
+      var componentType = components[i].getType();
+      var componentOffset = offset + componentOffsets[i];
+      values[i] = componentType.isPrimitive()?
+          readPrimitive(buffer, componentOffset, componentType):
+          read(buffer, buffer.getInt(componentOffset), componentType);
+    }
+    try {
+      return constructor(recordType, components).invokeWithArguments(values);
+    } catch (RuntimeException | Error e) {
+      throw e;
+    } catch (Throwable e) {
+      throw new IllegalStateException(e);
+    }
+  }
+
+  private static Object readPrimitive(ByteBuffer buffer, int offset, Class<?> type) {
+    if (type == boolean.class) {
+      return buffer.get(offset) != 0;
+    }
+    if (type == byte.class) {
+      return buffer.get(offset);
+    }
+    if (type == short.class) {
+      return buffer.getShort(offset);
+    }
+    if (type == char.class) {
+      return buffer.getChar(offset);
+    }
+    if (type == int.class) {
+      return buffer.getInt(offset);
+    }
+    if (type == float.class) {
+      return buffer.getFloat(offset);
+    }
+    if (type == long.class) {
+      return buffer.getLong(offset);
+    }
+    return buffer.getDouble(offset);
+  }
+
+  private MethodHandle constructor(Class<?> recordType, RecordComponent[] components) {
+    synchronized (constructors) {
+      return constructors.computeIfAbsent(recordType, __ -> {
+        var parameterTypes = Arrays.stream(components).<Class<?>>map(RecordComponent::getType).toList();
+        try {
+          var constructor = recordType.getDeclaredConstructor(parameterTypes.toArray(Class<?>[]::new));
+          constructor.setAccessible(true);
+          return MethodHandles.lookup().unreflectConstructor(constructor)
+              .asType(MethodType.methodType(Object.class, parameterTypes));
+        } catch (ReflectiveOperationException | RuntimeException e) {
+          throw new IllegalArgumentException("can not access the canonical constructor of " + recordType.getName(), e);
+        }
+      });
+    }
+  }
+
+  // the hash code of the String at the offset, equal to String.hashCode(), without creating the String
+  public static int stringHashCode(ByteBuffer buffer, int offset) {
+    var hash = 0;
+    var end = offset + Integer.BYTES + buffer.getInt(offset);
+    for(var index = offset + Integer.BYTES; index < end;) {
+      var decoded = decode(buffer, index);
+      var codePoint = decoded >>> 3;
+      if (Character.isBmpCodePoint(codePoint)) {
+        hash = 31 * hash + codePoint;
+      } else {
+        hash = 31 * (31 * hash + Character.highSurrogate(codePoint)) + Character.lowSurrogate(codePoint);
+      }
+      index += decoded & 7;
+    }
+    return hash;
+  }
+
+  // true if the String at the offset is equal to the string, without creating the String
+  public static boolean stringEquals(ByteBuffer buffer, int offset, String string) {
+    var end = offset + Integer.BYTES + buffer.getInt(offset);
+    var i = 0;
+    for(var index = offset + Integer.BYTES; index < end;) {
+      var decoded = decode(buffer, index);
+      var codePoint = decoded >>> 3;
+      if (i == string.length() || string.codePointAt(i) != codePoint) {
+        return false;
+      }
+      i += Character.charCount(codePoint);
+      index += decoded & 7;
+    }
+    return i == string.length();
+  }
+
+  // the code point at the index of a string encoded in UTF-8 and its number of bytes, as codePoint << 3 | size
+  private static int decode(ByteBuffer buffer, int index) {
+    var b = buffer.get(index) & 0xFF;
+    if (b < 0x80) {
+      return b << 3 | 1;
+    }
+    if (b < 0xE0) {
+      return ((b & 0x1F) << 6 | buffer.get(index + 1) & 0x3F) << 3 | 2;
+    }
+    if (b < 0xF0) {
+      return ((b & 0x0F) << 12 | (buffer.get(index + 1) & 0x3F) << 6 | buffer.get(index + 2) & 0x3F) << 3 | 3;
+    }
+    return ((b & 0x07) << 18 | (buffer.get(index + 1) & 0x3F) << 12 | (buffer.get(index + 2) & 0x3F) << 6
+        | buffer.get(index + 3) & 0x3F) << 3 | 4;
+  }
+
+  // the method of ByteBuffer that reads a value of a primitive type, an enum, a String or a record
+  // being read as an int (an ordinal or an offset)
+  static String getter(Class<?> type) {
+    if (type == boolean.class || type == byte.class) {
+      return "get";
+    }
+    if (type == short.class) {
+      return "getShort";
+    }
+    if (type == char.class) {
+      return "getChar";
+    }
+    if (type == long.class) {
+      return "getLong";
+    }
+    if (type == float.class) {
+      return "getFloat";
+    }
+    if (type == double.class) {
+      return "getDouble";
+    }
+    return "getInt";
+  }
+}
@@ -0,0 +1,279 @@
+package com.github.forax.patterntree;
+
+import com.github.forax.patterntree.PatternTrees.Node;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles.Lookup;
+import java.lang.invoke.MethodType;
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.stream.IntStream;
+
+import static com.github.forax.patterntree.JavaSource.javaName;
+import static java.util.Objects.requireNonNull;
+import static java.util.stream.Collectors.joining;
+
+// Generates the Java source of a class with a method
+//   static int match(java.nio.ByteBuffer buffer, int r0, Object[] bindings)
+// (or match(java.nio.ByteBuffer buffer, int p0, int p1, ..., Object[] bindings) for a switch on a tuple)
+// that matches a record encoded with a BinaryLayout at the offset r0 of the buffer, like JavaSource.
+// The transitions read the tags and the components from the buffer, no record is created,
+// only the values of the bindings of the matching case are created (or boxed) by BinaryLayout.read().
+//
+// A variable of a primitive type contains the value, a variable of an enum contains the ordinal
+// and a variable of a reference type contains the offset of the value, -1 being null.
+public final class BinaryMatcher {
+  private BinaryMatcher() {
+    throw new AssertionError();
+  }
+
+  public static String toJava(Node root, BinaryLayout layout, String packageName, String className) {
+    var builder = new StringBuilder();
+    toJava(root, layout, packageName, className, builder);
+    return builder.toString();
+  }
+
+  // the offsets of the components and the tags of the layout are constants of the generated code,
+  // the layout itself (used to create the values of the bindings) is stored in the field LAYOUT
+  // initialized from the class data
+  public static void toJava(Node root, BinaryLayout layout, String packageName, String className, Appendable appendable) {
+    requireNonNull(root);
+    requireNonNull(layout);
+    requireNonNull(packageName);
+    requireNonNull(className);
+    requireNonNull(appendable);
+    var emitter = new BinaryEmitter(appendable, layout, root);
+    if (!packageName.isEmpty()) {
+      emitter.line("package " + packageName + ";");
+      emitter.line("");
+    }
+    emitter.openBlock("final class " + className + " {");
+    emitter.line("private static final " + javaName(BinaryLayout.class) + " LAYOUT = layout();");
+    emitter.line("");
+    emitter.line("private " + className + "() {}");
+    emitter.line("");
+    emitter.openBlock("private static " + javaName(BinaryLayout.class) + " layout() {");
+    emitter.openBlock("try {");
+    emitter.line("return java.lang.invoke.MethodHandles.classData(java.lang.invoke.MethodHandles.lookup(), \"_\", " + javaName(BinaryLayout.class) + ".class);");
+    emitter.reopen("catch (IllegalAccessException e) {");
+    emitter.line("throw new AssertionError(e);");
+    emitter.end();
+    emitter.end();
+    emitter.line("");
+    var selectorTypes = root.selectorTypes();
+    var parameters = root.targetClass == Node.Tuple.class?
+        IntStream.range(0, selectorTypes.size()).mapToObj(i -> binaryName(selectorTypes.get(i)) + " p" + i).collect(joining(", ")):
+        binaryName(root.targetClass) + " r0";
+    emitter.openBlock("static int " + JavaSource.METHOD_NAME + "(java.nio.ByteBuffer buffer, " + parameters + ", Object[] bindings) {");
+    if (CodeGenerator.generate(root, emitter)) {
+      emitter.line("throw new MatchException(null, null);");
+    }
+    emitter.end();
+    emitter.end();
+  }
+
+  // Compiles the source in memory and defines it as a hidden class in the package of the lookup,
+  // the returned method handle has the type methodType(root).
+  // The types of the patterns must be accessible from the lookup class and visible from the class path.
+  public static MethodHandle compile(Node root, BinaryLayout layout, Lookup lookup) {
+    requireNonNull(root);
+    requireNonNull(layout);
+    requireNonNull(lookup);
+    var packageName = lookup.lookupClass().getPackageName();
+    var className = "PatternTreeBinaryMatcher";
+    var builder = new StringBuilder();
+    toJava(root, layout, packageName, className, builder);
+    var bytecode = JavaSource.compile(packageName.isEmpty()? className: packageName + '.' + className, builder.toString());
+    try {
+      var matcherLookup = lookup.defineHiddenClassWithClassData(bytecode, layout, true);
+      return matcherLookup.findStatic(matcherLookup.lookupClass(), JavaSource.METHOD_NAME, methodType(root));
+    } catch (IllegalAccessException | NoSuchMethodException e) {
+      throw new IllegalStateException(e);
+    }
+  }
+
+  // the type of the method match, (ByteBuffer, int, Object[])int or (ByteBuffer, int, int, ..., Object[])int for a tuple,
+  // a selector of a primitive type is passed by value
+  public static MethodType methodType(Node root) {
+    return MethodType.methodType(int.class, ByteBuffer.class)
+        .appendParameterTypes(root.selectorTypes().stream().<Class<?>>map(BinaryMatcher::binaryType).toList())
+        .appendParameterTypes(Object[].class);
+  }
+
+  // the type of a variable, an int (an offset or an ordinal) for a reference type
+  private static Class<?> binaryType(Class<?> type) {
+    return type.isPrimitive()? type: int.class;
+  }
+
+  private static String binaryName(Class<?> type) {
+    return binaryType(type).getName();
+  }
+
+  private static final class BinaryEmitter extends CodeGenerator.TextEmitter {
+    private final BinaryLayout layout;
+    private final HashMap<Integer, Class<?>> types = new HashMap<>();  // the static type of each variable in scope
+    private final HashMap<Integer, Class<?>> encodedTypes = new HashMap<>();  // the type each variable was read as
+    private final HashSet<Integer> nonNulls = new HashSet<>();  // the variables known to be non-null
+    private final ArrayDeque<List<Integer>> blocks = new ArrayDeque<>();  // the variables known to be non-null in each block
+
+    private BinaryEmitter(Appendable appendable, BinaryLayout layout, Node root) {
+      super(appendable, 0);
+      this.layout = layout;
+      types.put(0, root.targetClass);
+      encodedTypes.put(0, root.targetClass);
+    }
+
+    private void nonNull(int varnum) {
+      if (nonNulls.add(varnum)) {
+        blocks.element().add(varnum);
+      }
+    }
+
+    private void openBlock(String line) {
+      open(line);
+      blocks.push(new ArrayList<>());
+    }
+
+    @Override
+    public void end() {
+      blocks.pop().forEach(nonNulls::remove);
+      super.end();
+    }
+
+    // the encoded type is the type of the component or the parameter the value was read from,
+    // a cast changes the static type but not the encoding of the value
+    private void declare(Class<?> type, Class<?> encodedType, int varnum, String value) {
+      types.put(varnum, type);
+      encodedTypes.put(varnum, encodedType);
+      line(binaryName(encodedType) + " r" + varnum + " = " + value + ";");
+    }
+
+    // a test of the tag of a non-null record
+    private String tagTest(int input, Class<?> type) {
+      var tags = layout.tags(type);
+      return switch (tags.length) {
+        case 0 -> "false";
+        case 1 -> "buffer.getInt(r" + input + ") == " + tags[0];
+        default -> "switch (buffer.getInt(r" + input + ")) { case " +
+            Arrays.stream(tags).mapToObj(Integer::toString).collect(joining(", ")) + " -> true; default -> false; }";
+      };
+    }
+
+    @Override
+    public void accessor(Class<?> type, int varnum, int input, String name) {
+      if (!nonNulls.contains(input)) {  // reading a component of null does not fail
+        requireNonNull(input);
+      }
+      var offset = layout.offset(types.get(input), name);
+      var read = "buffer." + BinaryLayout.getter(type) + "(r" + input + " + " + offset + ")";
+      declare(type, type, varnum, type == boolean.class? read + " != 0": read);
+    }
+
+    @Override
+    public void parameter(Class<?> type, int varnum, int parameter) {
+      declare(type, type, varnum, "p" + parameter);
+    }
+
+    @Override
+    public void match(int index, List<Integer> bindings) {
+      for(var i = 0; i < bindings.size(); i++) {
+        var binding = bindings.get(i);
+        // decoded with the encoded type, a String or an enum bound to a supertype is not a record
+        var encodedType = encodedTypes.get(binding);
+        line("bindings[" + i + "] = " +
+            (encodedType.isPrimitive()? "r" + binding: "LAYOUT.read(buffer, r" + binding + ", " + javaName(encodedType) + ".class)") + ";");
+      }
+      line("return " + index + ";");
+    }
+
+    @Override
+    public void requireNonNull(int input) {
+      open("if (r" + input + " == -1) {");
+      line("throw new NullPointerException(\"null is a remainder\");");
+      super.end();
+      nonNull(input);
+    }
+
+    // the tag of the record is read before its components, so the null check is explicit
+    @Override
+    public void implicitNullCheck(int input) {
+      requireNonNull(input);
+    }
+
+    @Override
+    public void uncheckedCast(Class<?> type, int varnum, int input) {
+      open("if (!(" + tagTest(input, type) + ")) {  // a record unknown by the layout is a remainder");
+      line("throw new IncompatibleClassChangeError(\"tag \" + buffer.getInt(r" + input + "));");
+      super.end();
+      cast(type, varnum, input);
+    }
+
+    @Override
+    public void cast(Class<?> type, int varnum, int input) {
+      declare(type, encodedTypes.get(input), varnum, "r" + input);
+      if (nonNulls.contains(input)) {
+        nonNull(varnum);
+      }
+    }
+
+    @Override
+    public void ifInstanceOf(int input, Class<?> type, int varnum) {
+      openBlock("if (r" + input + " != -1 && " + tagTest(input, type) + ") {");
+      nonNull(input);
+      cast(type, varnum, input);
+    }
+
+    @Override
+    public void ifNull(int input, Class<?> type, int varnum) {
+      openBlock("if (r" + input + " == -1) {");
+      cast(type, varnum, input);
+    }
+
+    @Override
+    public void ifNonNull(int input) {
+      openBlock("if (r" + input + " != -1) {");
+      nonNull(input);
+    }
+
+    @Override
+    public void block() {
+      openBlock("{");
+    }
+
+    @Override
+    public void switchOn(Class<?> type, int input, String kind) {
+      String selector;
+      if (type.isEnum()) {  // the variable is the ordinal
+        selector = "r" + input;
+      } else if (type == String.class) {
+        selector = javaName(BinaryLayout.class) + ".stringHashCode(buffer, r" + input + ")";
+      } else {
+        selector = CodeGenerator.switchSelector(type, "r" + input);
+      }
+      openBlock("switch (" + selector + ") {  // " + kind);
+    }
+
+    @Override
+    public void caseLabel(int key, Object constant) {
+      openBlock("case " + key + " -> {" + CodeGenerator.caseComment(constant));
+    }
+
+    @Override
+    public void ifEquals(Class<?> type, int input, Object constant) {
+      var test = type == String.class?
+          javaName(BinaryLayout.class) + ".stringEquals(buffer, r" + input + ", " + CodeGenerator.constantText(constant) + ")":
+          CodeGenerator.equalsTest(type, "r" + input, constant);
+      openBlock("if (" + test + ") {");
+    }
+
+    @Override
+    public void callShared(int method, int varnum, int input, List<Integer> externals, List<Integer> indexes, boolean fallsThrough) {
+      throw new AssertionError("no sharing");
+    }
+  }
+}
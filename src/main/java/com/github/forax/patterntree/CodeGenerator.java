@@ -0,0 +1,583 @@
+package com.github.forax.patterntree;
+
+import com.github.forax.patterntree.PatternTrees.Node;
+import com.github.forax.patterntree.PatternTrees.Node.NullWitness;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.lang.reflect.RecordComponent;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.stream.Stream;
+
+import static com.github.forax.patterntree.PatternTrees.Node.UNINITIALIZED;
+import static java.util.stream.Collectors.joining;
+
+// Walks a decision tree and asks an emitter to generate the code of each transition,
+// all the decisions (unchecked cast of a total node, flow facts, switch on constants) are taken here
+// so the pseudo-code and the Java source have the same structure.
+final class CodeGenerator {
+  // The instructions of the generated code, a variable is represented by its number,
+  // the instructions that start with "if", "switch", "case" or "block" open a block closed by end()
+  interface Emitter {
+    void accessor(Class<?> type, int varnum, int input, String name);
+    void parameter(Class<?> type, int varnum, int parameter);
+    void match(int index, List<Integer> bindings);
+    void requireNonNull(int input);
+    void implicitNullCheck(int input);
+    void uncheckedCast(Class<?> type, int varnum, int input);
+    void cast(Class<?> type, int varnum, int input);
+    void ifInstanceOf(int input, Class<?> type, int varnum);
+    void ifNull(int input, Class<?> type, int varnum);
+    void ifNonNull(int input);
+    void block();
+    void switchOn(Class<?> type, int input, String kind);
+    void caseLabel(int key, Object constant);
+    void ifEquals(Class<?> type, int input, Object constant);
+    void callShared(int method, int varnum, int input, List<Integer> externals, List<Integer> indexes, boolean fallsThrough);
+    void end();
+
+    // called before and after the code of a node and its sub-tree
+    default void enter(Node node) {}
+    default void exit(Node node) {}
+  }
+
+  // An emitter that writes indented lines to an appendable
+  abstract static class TextEmitter implements Emitter {
+    private final Appendable appendable;
+    private int depth;
+    private int lineCount;
+
+    TextEmitter(Appendable appendable, int depth) {
+      this.appendable = appendable;
+      this.depth = depth;
+    }
+
+    final void line(String line) {
+      try {
+        for(var i = 0; !line.isEmpty() && i < depth; i++) {
+          appendable.append("  ");
+        }
+        appendable.append(line).append('\n');
+      } catch (IOException e) {
+        throw new UncheckedIOException(e);
+      }
+      lineCount++;
+    }
+
+    // the number of lines already written
+    final int lineCount() {
+      return lineCount;
+    }
+
+    final void open(String line) {
+      line(line);
+      depth++;
+    }
+
+    // closes the current block and opens a new one on the same line
+    final void reopen(String line) {
+      depth--;
+      open("} " + line);
+    }
+
+    @Override
+    public void end() {
+      depth--;
+      line("}");
+    }
+  }
+
+  // Generates the pseudo-code of Node.toCode()
+  static final class PseudoCodeEmitter extends TextEmitter {
+    PseudoCodeEmitter(Appendable appendable) {
+      super(appendable, 0);
+    }
+
+    private static String simpleName(Class<?> clazz) {
+      var name = clazz.getName();
+      var index = name.lastIndexOf('.');
+      var index2 = name.lastIndexOf('$');
+      return name.substring(Math.max(index, index2) + 1);
+    }
+
+    @Override
+    public void accessor(Class<?> type, int varnum, int input, String name) {
+      line(simpleName(type) + " r" + varnum + " = r" + input + "." + name + "();");
+    }
+
+    @Override
+    public void parameter(Class<?> type, int varnum, int parameter) {
+      line(simpleName(type) + " r" + varnum + " = p" + parameter + ";");
+    }
+
+    @Override
+    public void match(int index, List<Integer> bindings) {
+      line("return call " + index + "(" + bindings.stream().map(b -> "r" + b).collect(joining(", ")) + ");");
+    }
+
+    @Override
+    public void requireNonNull(int input) {
+      line("requireNonNull(r" + input + ");  // null is a remainder");
+    }
+
+    @Override
+    public void implicitNullCheck(int input) {
+      line("// implicit null check of r" + input);
+    }
+
+    @Override
+    public void uncheckedCast(Class<?> type, int varnum, int input) {
+      var typename = simpleName(type);
+      line(typename + " r" + varnum + " = (" + typename + ") r" + input + ";    // catch(CCE) -> ICCE");
+    }
+
+    @Override
+    public void cast(Class<?> type, int varnum, int input) {
+      var typename = simpleName(type);
+      line(typename + " r" + varnum + " = (" + typename + ") r" + input + ";");
+    }
+
+    @Override
+    public void ifInstanceOf(int input, Class<?> type, int varnum) {
+      open("if r" + input + " instanceof " + simpleName(type) + " {");
+      cast(type, varnum, input);
+    }
+
+    @Override
+    public void ifNull(int input, Class<?> type, int varnum) {
+      open("if r" + input + " == null {");
+      cast(type, varnum, input);
+    }
+
+    @Override
+    public void ifNonNull(int input) {
+      open("if r" + input + " != null {");
+    }
+
+    @Override
+    public void block() {
+      open("{");
+    }
+
+    @Override
+    public void switchOn(Class<?> type, int input, String kind) {
+      open("switch " + switchSelector(type, "r" + input) + " {  // " + kind);
+    }
+
+    @Override
+    public void caseLabel(int key, Object constant) {
+      open("case " + key + " -> {" + caseComment(constant));
+    }
+
+    @Override
+    public void ifEquals(Class<?> type, int input, Object constant) {
+      open("if " + equalsTest(type, "r" + input, constant) + " {");
+    }
+
+    @Override
+    public void callShared(int method, int varnum, int input, List<Integer> externals, List<Integer> indexes, boolean fallsThrough) {
+      var arguments = Stream.concat(Stream.of(input), externals.stream()).map(v -> "r" + v).collect(joining(", "));
+      line("int r" + varnum + " = call shared" + method + "(" + arguments + ");");
+      if (fallsThrough) {
+        open("if r" + varnum + " != -1 {");
+      }
+      line("return call " + indexes + "[r" + varnum + "];");
+      if (fallsThrough) {
+        end();
+      }
+    }
+  }
+
+  // a variable and its static type
+  record Var(int varnum, Class<?> type) {}
+
+  private final Emitter emitter;
+  private final Sharing sharing;
+  private final boolean partial;
+  private final Node root;
+  private final HashMap<Node, Var> scope = new HashMap<>();
+
+  private CodeGenerator(Emitter emitter, Sharing sharing, boolean partial, Node root) {
+    this.emitter = emitter;
+    this.sharing = sharing;
+    this.partial = partial;
+    this.root = root;
+  }
+
+  // Returns true if the end of the generated code is reachable, i.e. if no case matches
+  static boolean generate(Node root, Emitter emitter) {
+    return generate(root, emitter, null, false);
+  }
+
+  // the sub-trees are shared if sharing is not null,
+  // if partial is true, null and the subclasses unknown at compile time are not remainders,
+  // they are tested like the other values and reach the end of the code if no case matches,
+  // a null root value matches nothing so the caller tests it before the generated code
+  static boolean generate(Node root, Emitter emitter, Sharing sharing, boolean partial) {
+    return new CodeGenerator(emitter, sharing, partial, root).generate(root, 0, root.targetClass, Facts.of(root.targetClass, partial));
+  }
+
+  private Var get(Node node) {
+    var var = scope.get(node);
+    if (var == null) {
+      throw new IllegalStateException("no varnum for node " + node);
+    }
+    return var;
+  }
+
+  // A sub-tree generated in its own method, the method takes the value of the node, the values of the nodes
+  // outside the sub-tree used by the sub-tree (the externals), and returns the position of the matching case
+  // in indexes or -1. Two sub-trees generating the same code can be shared between several matchers.
+  interface Sharing {
+    // returns the number of the shared method that contains the code of the sub-tree or -1
+    int share(SubTree subTree);
+
+    // true if the shared method returns -1 when no case matches
+    boolean fallsThrough(int method);
+  }
+
+  record SubTree(Node node, Class<?> type, Facts facts, List<Node> externals, List<Class<?>> externalTypes,
+                 List<Integer> indexes) {
+    // the externals are the variables r0, r1, ... and the value of the node is the following variable,
+    // returns true if the end of the code is reachable
+    boolean generate(Emitter emitter) {
+      var generator = new CodeGenerator(emitter, null, false, node);
+      for(var i = 0; i < externals.size(); i++) {
+        generator.scope.put(externals.get(i), new Var(i, externalTypes.get(i)));
+      }
+      return generator.generate(node, externals.size(), type, facts);
+    }
+  }
+
+  // a node that deconstructs a record, only those sub-trees are shared
+  private static boolean isDeconstruction(Node node) {
+    return node.componentNode != null && node.componentNode.componentSource == node;
+  }
+
+  private SubTree subTree(Node node, Class<?> type, Facts facts) {
+    var nodes = Collections.newSetFromMap(new IdentityHashMap<Node, Boolean>());
+    collectNodes(node, nodes);
+    var externals = new ArrayList<Node>();
+    var indexes = new ArrayList<Integer>();
+    collectExternals(node, nodes, externals, indexes);
+    var externalTypes = externals.stream().<Class<?>>map(external -> get(external).type()).toList();
+    return new SubTree(node, type, facts, List.copyOf(externals), externalTypes, List.copyOf(indexes));
+  }
+
+  private static void collectNodes(Node node, Set<Node> nodes) {
+    nodes.add(node);
+    node.map.values().forEach(n -> collectNodes(n, nodes));
+    node.constants.values().forEach(n -> collectNodes(n, nodes));
+    if (node.componentNode != null) {
+      collectNodes(node.componentNode, nodes);
+    }
+  }
+
+  private static void collectExternals(Node node, Set<Node> nodes, List<Node> externals, List<Integer> indexes) {
+    if (node.componentSource != null && node.parameter == UNINITIALIZED) {
+      addExternal(node.componentSource, nodes, externals);
+    }
+    if (node.index != UNINITIALIZED) {
+      node.bindingNodes.forEach(bindingNode -> addExternal(bindingNode, nodes, externals));
+      if (!indexes.contains(node.index)) {
+        indexes.add(node.index);
+      }
+    }
+    node.map.values().forEach(n -> collectExternals(n, nodes, externals, indexes));
+    node.constants.values().forEach(n -> collectExternals(n, nodes, externals, indexes));
+    if (node.componentNode != null) {
+      collectExternals(node.componentNode, nodes, externals, indexes);
+    }
+  }
+
+  private static void addExternal(Node node, Set<Node> nodes, List<Node> externals) {
+    if (!nodes.contains(node) && !externals.contains(node)) {
+      externals.add(node);
+    }
+  }
+
+  // What the flow analysis knows about the value of a variable: if the value is not null and its static type.
+  // For a component typed by a type variable, only the erasure (the first bound) is checked by the VM,
+  // the other bounds may be violated by heap pollution or separate compilation, so they are not facts
+  record Facts(boolean nonNull, Class<?> type) {
+    static Facts of(Class<?> type, boolean nonNull) {
+      return new Facts(nonNull || type.isPrimitive(), type);
+    }
+
+    static Facts of(RecordComponent component, boolean nonNull) {
+      return of(component.getType(), nonNull);
+    }
+
+    Facts asNonNull() {
+      return new Facts(true, type);
+    }
+
+    // an instanceof on the type is only a null check
+    boolean implies(Class<?> type) {
+      return type.isAssignableFrom(this.type);
+    }
+  }
+
+  // Returns true if the generated code can complete normally (JLS 14.22),
+  // the code following a code that can not complete normally is unreachable so it is not generated
+  private boolean generate(Node node, int varnum, Class<?> type, Facts facts) {
+    emitter.enter(node);
+    var completesNormally = generateNode(node, varnum, type, facts);
+    emitter.exit(node);
+    return completesNormally;
+  }
+
+  private boolean generateNode(Node node, int varnum, Class<?> varType, Facts facts) {
+    if (node.index != UNINITIALIZED) {
+      scope.put(node, new Var(varnum, varType));
+      emitter.match(node.index, node.bindingNodes.stream().map(n -> get(n).varnum()).toList());
+      return false;
+    }
+
+    if (sharing != null && node != root && isDeconstruction(node)) {
+      var subTree = subTree(node, varType, facts);
+      var method = sharing.share(subTree);
+      if (method != -1) {
+        var externals = subTree.externals.stream().map(n -> get(n).varnum()).toList();
+        var fallsThrough = sharing.fallsThrough(method);
+        emitter.callShared(method, varnum + 1, varnum, externals, subTree.indexes, fallsThrough);
+        return fallsThrough;
+      }
+    }
+
+    if (node.parameter != UNINITIALIZED) {
+      emitter.parameter(node.targetClass, varnum + 1, node.parameter);
+      varnum++;
+      varType = node.targetClass;
+      facts = Facts.of(node.targetClass, false);
+    } else if (node.componentSource != null) {
+      var component = node.component;
+      emitter.accessor(component.getType(), varnum + 1, get(node.componentSource).varnum(), component.getName());
+      varnum++;
+      varType = component.getType();
+      facts = Facts.of(component, node.nonNull);
+    }
+
+    var reachable = true;
+    var position = 0;
+    var iterator = node.map.entrySet().iterator();
+    while (reachable && iterator.hasNext()) {
+      if (position++ == node.constantPosition) {
+        generateConstants(node, varnum, varType, facts);
+      }
+      var entry = iterator.next();
+      var type = entry.getKey();
+      var nextNode = entry.getValue();
+
+      var last = !iterator.hasNext() && node.constantPosition != node.map.size();
+      // in a partial matcher, the accessor of a record can not be the null check
+      if (last && (!partial || facts.nonNull() || !isDeconstruction(nextNode))) {
+        if (type == node.targetClass || type == NullWitness.class) {
+          // do nothing
+          scope.put(node, new Var(varnum, varType));
+          reachable = generate(nextNode, varnum, varType, facts);
+          continue;
+        }
+        if (facts.implies(type)) {  // a type pattern on a supertype of the static type matches null
+          emitter.cast(type, varnum + 1, varnum);
+          scope.put(node, new Var(varnum + 1, type));
+          reachable = generate(nextNode, varnum + 1, type, facts);
+          continue;
+        }
+      }
+      if (last && node.total && !partial) {    // sealed and total
+        if (!facts.nonNull()) {  // a preceding null transition that always matches may have already checked null
+          var componentNode = nextNode.componentNode;
+          if (componentNode != null && componentNode.componentSource == nextNode) {  // the accessor checks null
+            emitter.implicitNullCheck(varnum);
+          } else {
+            emitter.requireNonNull(varnum);
+          }
+        }
+        emitter.uncheckedCast(type, varnum + 1, varnum);
+        scope.put(node, new Var(varnum + 1, type));
+        reachable = generate(nextNode, varnum + 1, type, Facts.of(type, true));
+        continue;
+      }
+      if (type == NullWitness.class) {
+        if (facts.nonNull()) {  // the value can not be null
+          continue;
+        }
+        emitter.ifNull(varnum, nextNode.targetClass, varnum + 1);
+        scope.put(node, new Var(varnum + 1, nextNode.targetClass));
+        generate(nextNode, varnum + 1, nextNode.targetClass, Facts.of(nextNode.targetClass, false));
+        emitter.end();
+        if (nextNode.isUnconditional()) {
+          facts = facts.asNonNull();
+        }
+        continue;
+      }
+      if (type == node.targetClass || facts.implies(type)) {
+        // the instanceof is only a null check
+        if (facts.nonNull()) {
+          emitter.block();
+        } else {
+          emitter.ifNonNull(varnum);
+        }
+        boolean completesNormally;
+        if (type == node.targetClass) {
+          scope.put(node, new Var(varnum, varType));
+          completesNormally = generate(nextNode, varnum, varType, facts.asNonNull());
+        } else {
+          emitter.cast(type, varnum + 1, varnum);
+          scope.put(node, new Var(varnum + 1, type));
+          completesNormally = generate(nextNode, varnum + 1, type, facts.asNonNull());
+        }
+        emitter.end();
+        reachable = completesNormally || !facts.nonNull();
+        continue;
+      }
+      emitter.ifInstanceOf(varnum, type, varnum + 1);
+      scope.put(node, new Var(varnum + 1, type));
+      generate(nextNode, varnum + 1, type, Facts.of(type, true));
+      emitter.end();
+    }
+    if (reachable && node.constantPosition == node.map.size()) {
+      generateConstants(node, varnum, varType, facts);
+    }
+
+    if (reachable && node.componentNode != null) {
+      scope.put(node, new Var(varnum, varType));
+      reachable = generate(node.componentNode, varnum, varType, facts);
+    }
+    return reachable;
+  }
+
+  // a switch without a default can always complete normally
+  private void generateConstants(Node node, int varnum, Class<?> varType, Facts facts) {
+    // group the constants by case label, several strings or longs may have the same hash
+    var groups = new TreeMap<Integer, List<Map.Entry<Object, Node>>>();
+    for(var entry: node.constants.entrySet()) {
+      groups.computeIfAbsent(switchKey(entry.getKey()), __ -> new ArrayList<>()).add(entry);
+    }
+
+    var targetClass = node.targetClass;
+    var nullable = !facts.nonNull();
+    if (nullable) {
+      emitter.ifNonNull(varnum);
+    }
+    emitter.switchOn(targetClass, varnum, switchKind(groups.keySet()));
+    scope.put(node, new Var(varnum, varType));
+    groups.forEach((key, entries) -> {
+      if (needsEquality(targetClass)) {
+        emitter.caseLabel(key, null);
+        for(var entry: entries) {
+          emitter.ifEquals(targetClass, varnum, entry.getKey());
+          generate(entry.getValue(), varnum, varType, facts.asNonNull());
+          emitter.end();
+        }
+      } else {
+        var entry = entries.get(0);
+        emitter.caseLabel(key, entry.getKey());
+        generate(entry.getValue(), varnum, varType, facts.asNonNull());
+      }
+      emitter.end();
+    });
+    emitter.end();
+    if (nullable) {
+      emitter.end();
+    }
+  }
+
+  // the case label of a constant, strings and longs are hashed so they also need an equality check
+  private static int switchKey(Object constant) {
+    return switch (constant) {
+      case Enum<?> enumConstant -> enumConstant.ordinal();
+      case String s -> s.hashCode();
+      case Long l -> Long.hashCode(l);
+      case Character c -> c;
+      case Integer i -> i;
+      default -> throw new AssertionError("invalid constant " + constant);
+    };
+  }
+
+  private static boolean needsEquality(Class<?> type) {
+    return type == String.class || Node.wrap(type) == Long.class;
+  }
+
+  static String switchSelector(Class<?> type, String value) {
+    if (type.isEnum()) {
+      return value + ".ordinal()";
+    }
+    if (type == String.class) {
+      return value + ".hashCode()";
+    }
+    if (Node.wrap(type) == Long.class) {
+      return "Long.hashCode(" + value + ")";
+    }
+    return value;
+  }
+
+  // the comment of a case, the hashed constants have their own equality test
+  static String caseComment(Object constant) {
+    if (constant == null || constant instanceof Integer) {
+      return "";
+    }
+    return "  // " + constantText(constant);
+  }
+
+  static String equalsTest(Class<?> type, String value, Object constant) {
+    var text = constantText(constant);
+    return type == String.class? value + ".equals(" + text + ")": value + " == " + text;
+  }
+
+  // a constant as a Java literal, the enum constants are only used in comments
+  static String constantText(Object constant) {
+    return switch (constant) {
+      case Enum<?> enumConstant -> enumConstant.name();
+      case String s -> {
+        var builder = new StringBuilder().append('"');
+        s.chars().forEach(c -> escape(builder, (char) c, '"'));
+        yield builder.append('"').toString();
+      }
+      case Long l -> l + "L";
+      case Character c -> escape(new StringBuilder().append('\''), c, '\'').append('\'').toString();
+      default -> constant.toString();
+    };
+  }
+
+  // octal escapes and not unicode escapes, a unicode escape is translated before the source is parsed
+  private static StringBuilder escape(StringBuilder builder, char c, char quote) {
+    return switch (c) {
+      case '\\' -> builder.append("\\\\");
+      case '\n' -> builder.append("\\n");
+      case '\r' -> builder.append("\\r");
+      case '\t' -> builder.append("\\t");
+      default -> {
+        if (c == quote) {
+          yield builder.append('\\').append(c);
+        }
+        if (c < ' ' || c == 127) {
+          yield builder.append("\\%03o".formatted((int) c));
+        }
+        yield builder.append(c);
+      }
+    };
+  }
+
+  // use the same heuristic as javac to choose between a tableswitch and a lookupswitch
+  private static String switchKind(Set<Integer> keys) {
+    var lo = (long) keys.stream().mapToInt(k -> k).min().orElse(0);
+    var hi = (long) keys.stream().mapToInt(k -> k).max().orElse(0);
+    var tableSpaceCost = 4 + (hi - lo + 1);
+    var tableTimeCost = 3;
+    var lookupSpaceCost = 3 + 2L * keys.size();
+    var lookupTimeCost = (long) keys.size();
+    if (tableSpaceCost + 3 * tableTimeCost <= lookupSpaceCost + 3 * lookupTimeCost) {
+      return "tableswitch";
+    }
+    return "lookupswitch";
+  }
+}
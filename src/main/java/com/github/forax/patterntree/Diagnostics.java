@@ -0,0 +1,239 @@
+package com.github.forax.patterntree;
+
+import com.github.forax.patterntree.PatternTrees.Node;
+import com.sun.management.HotSpotDiagnosticMXBean;
+import org.objectweb.asm.ClassReader;
+import org.objectweb.asm.ClassVisitor;
+import org.objectweb.asm.ClassWriter;
+import org.objectweb.asm.Label;
+import org.objectweb.asm.MethodVisitor;
+import org.objectweb.asm.Opcodes;
+import org.objectweb.asm.util.CheckClassAdapter;
+import org.objectweb.asm.util.Textifier;
+import org.objectweb.asm.util.TraceClassVisitor;
+
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.lang.invoke.MethodHandles.Lookup;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayDeque;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TreeMap;
+
+import static java.util.Objects.requireNonNull;
+
+// Diagnostics of the bytecode of the matcher compiled by JavaSource.compile():
+// the size of the code of each node (with its sub-tree), the size of the method match compared to
+// the inlining thresholds of the JIT, and the number of type tests (instanceof) executed to reach each case.
+public record Diagnostics(int methodSize, Map<Node, Integer> subtreeSizes, Map<Integer, Integer> typeTests,
+                          Limits limits, String bytecode) {
+  public Diagnostics {
+    subtreeSizes = Collections.unmodifiableMap(new IdentityHashMap<>(subtreeSizes));
+    typeTests = Collections.unmodifiableMap(new TreeMap<>(typeTests));
+    requireNonNull(limits);
+    requireNonNull(bytecode);
+  }
+
+  // The thresholds of the JIT, in bytes of bytecode:
+  // a method smaller than maxInlineSize is always inlined, a hot method smaller than freqInlineSize is inlined,
+  // a method bigger than hugeMethodLimit is not compiled
+  public record Limits(int maxInlineSize, int freqInlineSize, int hugeMethodLimit) {
+    // the default values of HotSpot on x64 and aarch64
+    public static final Limits DEFAULT = new Limits(35, 325, 8000);
+
+    // the values of the running VM, or the default values if the VM is not HotSpot
+    public static Limits current() {
+      try {
+        var bean = ManagementFactory.getPlatformMXBean(HotSpotDiagnosticMXBean.class);
+        if (bean == null) {
+          return DEFAULT;
+        }
+        return new Limits(
+            Integer.parseInt(bean.getVMOption("MaxInlineSize").getValue()),
+            Integer.parseInt(bean.getVMOption("FreqInlineSize").getValue()),
+            Integer.parseInt(bean.getVMOption("HugeMethodLimit").getValue()));
+      } catch (IllegalArgumentException | LinkageError e) {  // unknown option or no module jdk.management
+        return DEFAULT;
+      }
+    }
+  }
+
+  // Compiles the matcher in the package of the lookup class, like JavaSource.compile(), without loading it
+  public static Diagnostics of(Node root, Lookup lookup) {
+    requireNonNull(root);
+    requireNonNull(lookup);
+    var linesMap = new HashMap<Node, JavaSource.Lines>();
+    var bytecode = JavaSource.toBytecode(root, lookup.lookupClass().getPackageName(), linesMap);
+
+    var lineSizes = new HashMap<Integer, Integer>();
+    var methodSize = lineSizes(bytecode, lineSizes);
+    var subtreeSizes = new IdentityHashMap<Node, Integer>();
+    linesMap.forEach((node, lines) -> {
+      var size = 0;
+      for(var line = lines.first(); line <= lines.last(); line++) {
+        size += lineSizes.getOrDefault(line, 0);
+      }
+      subtreeSizes.put(node, size);
+    });
+
+    var typeTests = new HashMap<Integer, Integer>();
+    CodeGenerator.generate(root, new TypeTestCounter(typeTests));
+
+    var writer = new StringWriter();
+    new ClassReader(bytecode).accept(new CheckClassAdapter(new TraceClassVisitor(null, new Textifier(), new PrintWriter(writer))), 0);
+
+    return new Diagnostics(methodSize, subtreeSizes, typeTests, Limits.current(), writer.toString());
+  }
+
+  // Computes the number of bytes of the method match per line, and returns the size of the method.
+  // The offset of a label is only known once the label is written, so the class is rewritten
+  // (with the same instructions) by a ClassWriter, a label written after the last instruction gives the length
+  // of the code attribute, so the size does not depend on the debug information.
+  static int lineSizes(byte[] bytecode, Map<Integer, Integer> lineSizes) {
+    var lineStarts = new TreeMap<Integer, Integer>();  // offset -> line
+    var codeSize = new int[1];
+    new ClassReader(bytecode).accept(new ClassVisitor(Opcodes.ASM9, new ClassWriter(0)) {
+      @Override
+      public MethodVisitor visitMethod(int access, String name, String descriptor, String signature, String[] exceptions) {
+        var mv = super.visitMethod(access, name, descriptor, signature, exceptions);
+        if (!name.equals(JavaSource.METHOD_NAME)) {
+          return mv;
+        }
+        return new MethodVisitor(Opcodes.ASM9, mv) {
+          @Override
+          public void visitLineNumber(int line, Label start) {
+            super.visitLineNumber(line, start);
+            lineStarts.put(start.getOffset(), line);
+          }
+
+          @Override
+          public void visitMaxs(int maxStack, int maxLocals) {
+            var end = new Label();
+            super.visitLabel(end);
+            codeSize[0] = end.getOffset();
+            super.visitMaxs(maxStack, maxLocals);
+          }
+        };
+      }
+    }, 0);
+    for(var entry: lineStarts.entrySet()) {
+      var end = lineStarts.higherKey(entry.getKey());
+      lineSizes.merge(entry.getValue(), (end == null? codeSize[0]: end) - entry.getKey(), Integer::sum);
+    }
+    return codeSize[0];
+  }
+
+  // Counts the instanceof executed before reaching each case, the tests of a closed block
+  // are not executed by the following code, only the test of the block itself
+  private static final class TypeTestCounter implements CodeGenerator.Emitter {
+    private final Map<Integer, Integer> typeTests;
+    private final ArrayDeque<Integer> stack = new ArrayDeque<>();  // the count after each block
+    private int count;
+
+    private TypeTestCounter(Map<Integer, Integer> typeTests) {
+      this.typeTests = typeTests;
+    }
+
+    private void open(int tests) {
+      count += tests;
+      stack.push(count);
+    }
+
+    @Override
+    public void end() {
+      count = stack.pop();
+    }
+
+    @Override
+    public void ifInstanceOf(int input, Class<?> type, int varnum) {
+      open(1);
+    }
+
+    @Override
+    public void ifNull(int input, Class<?> type, int varnum) {
+      open(0);
+    }
+
+    @Override
+    public void ifNonNull(int input) {
+      open(0);
+    }
+
+    @Override
+    public void block() {
+      open(0);
+    }
+
+    @Override
+    public void switchOn(Class<?> type, int input, String kind) {
+      open(0);
+    }
+
+    @Override
+    public void caseLabel(int key, Object constant) {
+      open(0);
+    }
+
+    @Override
+    public void ifEquals(Class<?> type, int input, Object constant) {
+      open(0);
+    }
+
+    @Override
+    public void match(int index, List<Integer> bindings) {
+      typeTests.merge(index, count, Math::max);
+    }
+
+    @Override
+    public void accessor(Class<?> type, int varnum, int input, String name) {}
+    @Override
+    public void parameter(Class<?> type, int varnum, int parameter) {}
+    @Override
+    public void requireNonNull(int input) {}
+    @Override
+    public void implicitNullCheck(int input) {}
+    @Override
+    public void uncheckedCast(Class<?> type, int varnum, int input) {}
+    @Override
+    public void cast(Class<?> type, int varnum, int input) {}
+    @Override
+    public void callShared(int method, int varnum, int input, List<Integer> externals, List<Integer> indexes, boolean fallsThrough) {}
+  }
+
+  // a hot call site can inline the matcher
+  public boolean isInlinable() {
+    return methodSize <= limits.freqInlineSize;
+  }
+
+  // the JIT does not compile a huge method
+  public boolean isCompilable() {
+    return methodSize <= limits.hugeMethodLimit;
+  }
+
+  public int maxTypeTests() {
+    return typeTests.values().stream().mapToInt(c -> c).max().orElse(0);
+  }
+
+  public double averageTypeTests() {
+    return typeTests.values().stream().mapToInt(c -> c).average().orElse(0);
+  }
+
+  @Override
+  public String toString() {
+    var builder = new StringBuilder();
+    builder.append("method ").append(JavaSource.METHOD_NAME).append(": ").append(methodSize).append(" bytes")
+        .append(", MaxInlineSize ").append(limits.maxInlineSize)
+        .append(", FreqInlineSize ").append(limits.freqInlineSize)
+        .append(", HugeMethodLimit ").append(limits.hugeMethodLimit)
+        .append(isInlinable()? ", inlinable": isCompilable()? ", not inlinable": ", not compilable").append('\n');
+    builder.append("type tests: max ").append(maxTypeTests())
+        .append(", average ").append(String.format(Locale.ROOT, "%.2f", averageTypeTests())).append('\n');
+    typeTests.forEach((index, count) -> builder.append("  case ").append(index).append(": ").append(count).append('\n'));
+    return builder.toString();
+  }
+}
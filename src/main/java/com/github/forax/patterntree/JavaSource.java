@@ -0,0 +1,507 @@
+package com.github.forax.patterntree;
+
+import com.github.forax.patterntree.PatternTrees.Node;
+
+import javax.tools.DiagnosticCollector;
+import javax.tools.FileObject;
+import javax.tools.ForwardingJavaFileManager;
+import javax.tools.JavaFileManager;
+import javax.tools.JavaFileObject;
+import javax.tools.JavaFileObject.Kind;
+import javax.tools.SimpleJavaFileObject;
+import javax.tools.ToolProvider;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles.Lookup;
+import java.lang.invoke.MethodType;
+import java.net.URI;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Function;
+import java.util.function.Predicate;
+import java.util.stream.IntStream;
+import java.util.stream.Stream;
+
+import static java.util.Objects.requireNonNull;
+import static java.util.stream.Collectors.joining;
+
+// Generates the Java source of a class with a method
+//   static int match(TargetType r0, Object[] bindings)
+// (or match(Type0 p0, Type1 p1, ..., Object[] bindings) for a switch on a tuple)
+// that returns the index of the matching case and stores the values of its bindings into the array,
+// with the same structure as Node.toCode(). The source can be compiled in memory by javac.
+public final class JavaSource {
+  private JavaSource() {
+    throw new AssertionError();
+  }
+
+  public static final String METHOD_NAME = "match";
+
+  public static String toJava(Node root, String packageName, String className) {
+    var builder = new StringBuilder();
+    toJava(root, packageName, className, builder);
+    return builder.toString();
+  }
+
+  public static void toJava(Node root, String packageName, String className, Appendable appendable) {
+    toJava(root, packageName, className, appendable, new HashMap<>());
+  }
+
+  // the lines (starting at 1) of the code of a node and its sub-tree
+  record Lines(int first, int last) {}
+
+  static void toJava(Node root, String packageName, String className, Appendable appendable, Map<Node, Lines> linesMap) {
+    toJava(root, packageName, className, appendable, linesMap, null, Mode.TOTAL);
+  }
+
+  // what the method match does if no case matches
+  enum Mode {
+    // throws a MatchException, null and a subclass unknown at compile time are remainders (NPE and ICCE)
+    TOTAL,
+    // returns -1, no exception is thrown
+    PARTIAL,
+    // the method is static boolean match(TargetType r0), it returns true if a case matches and
+    // false otherwise, no binding is stored, the class is a Predicate that calls match
+    PREDICATE
+  }
+
+  // if sharedMethods is not null, the record deconstructions are calls to the shared methods,
+  // stored in the fields SHARED_0, SHARED_1, etc., a shared method already compiled is initialized from the class data
+  // (a list of method handles), the others are generated as static methods match0, match1, etc. of the class
+  static void toJava(Node root, String packageName, String className, Appendable appendable, Map<Node, Lines> linesMap,
+                     SharedMethods sharedMethods, Mode mode) {
+    requireNonNull(root);
+    requireNonNull(packageName);
+    requireNonNull(className);
+    requireNonNull(appendable);
+    requireNonNull(mode);
+    var predicate = mode == Mode.PREDICATE;
+    var emitter = new JavaEmitter(appendable, 0, linesMap, null, predicate);
+    if (!packageName.isEmpty()) {
+      emitter.line("package " + packageName + ";");
+      emitter.line("");
+    }
+    emitter.open("final class " + className + (predicate? " implements java.util.function.Predicate<Object>": "") + " {");
+    emitter.line("private " + className + "() {}");
+    emitter.line("");
+    var selectorTypes = root.selectorTypes();
+    var parameters = root.targetClass == Node.Tuple.class?
+        IntStream.range(0, selectorTypes.size()).mapToObj(i -> javaName(selectorTypes.get(i)) + " p" + i).collect(joining(", ")):
+        javaName(root.targetClass) + " r0";
+    // invokeExact() on a shared method is declared to throw Throwable
+    emitter.open("static " + (predicate? "boolean ": "int ") + METHOD_NAME + "(" + parameters + (predicate? "": ", Object[] bindings") + ")" +
+        (sharedMethods == null? "": " throws Throwable") + " {");
+    var noMatch = switch (mode) {
+      case TOTAL -> "throw new MatchException(null, null);";
+      case PARTIAL -> "return -1;";
+      case PREDICATE -> "return false;";
+    };
+    // a null selector is not matched by an unconditional type pattern, only the components can be null
+    if (mode != Mode.TOTAL && root.targetClass != Node.Tuple.class && !root.targetClass.isPrimitive()) {
+      emitter.open("if (r0 == null) {");
+      emitter.line(noMatch);
+      emitter.end();
+    }
+    if (CodeGenerator.generate(root, emitter, sharedMethods, mode != Mode.TOTAL)) {
+      emitter.line(noMatch);
+    }
+    emitter.end();
+    if (predicate) {
+      emitter.line("");
+      emitter.line("@Override");
+      emitter.open("public boolean test(Object value) {");
+      var selectorType = selectorTypes.get(0);
+      // a null is tested by match() like in the partial mode, apart for a primitive that can not be null
+      var nullTest = selectorType.isPrimitive()? "value != null && ": "";
+      emitter.line("return " + nullTest + METHOD_NAME + "((" + javaName(Node.wrap(selectorType)) + ") value);");
+      emitter.end();
+    }
+    if (sharedMethods != null && !sharedMethods.methods().isEmpty()) {
+      toJavaShared(sharedMethods, emitter);
+    }
+    emitter.end();
+  }
+
+  private static void toJavaShared(SharedMethods sharedMethods, JavaEmitter emitter) {
+    var methods = sharedMethods.methods();
+    var compiledCount = 0;
+    emitter.line("");
+    for(var i = 0; i < methods.size(); i++) {
+      var value = sharedMethods.handle(i) != null?
+          "shared(" + compiledCount++ + ")":
+          "local(\"" + METHOD_NAME + i + "\", " + methodTypeText(methods.get(i).type()) + ")";
+      emitter.line("private static final java.lang.invoke.MethodHandle SHARED_" + i + " = " + value + ";");
+    }
+    if (compiledCount != 0) {
+      emitter.line("");
+      emitter.open("private static java.lang.invoke.MethodHandle shared(int index) {");
+      emitter.open("try {");
+      emitter.line("return java.lang.invoke.MethodHandles.classDataAt(java.lang.invoke.MethodHandles.lookup(), \"_\", java.lang.invoke.MethodHandle.class, index);");
+      emitter.reopen("catch (IllegalAccessException e) {");
+      emitter.line("throw new AssertionError(e);");
+      emitter.end();
+      emitter.end();
+    }
+    if (compiledCount == methods.size()) {
+      return;
+    }
+    emitter.line("");
+    emitter.open("private static java.lang.invoke.MethodHandle local(String name, java.lang.invoke.MethodType type) {");
+    emitter.line("var lookup = java.lang.invoke.MethodHandles.lookup();");
+    emitter.open("try {");
+    emitter.line("return lookup.findStatic(lookup.lookupClass(), name, type);");
+    emitter.reopen("catch (NoSuchMethodException | IllegalAccessException e) {");
+    emitter.line("throw new AssertionError(e);");
+    emitter.end();
+    emitter.end();
+    for(var i = 0; i < methods.size(); i++) {
+      if (sharedMethods.handle(i) != null) {
+        continue;
+      }
+      var method = methods.get(i);
+      emitter.line("");
+      emitter.open("static int " + METHOD_NAME + i + "(" + method.parameters() + ") {");
+      method.body().lines().forEach(emitter::line);
+      emitter.end();
+    }
+  }
+
+  private static String methodTypeText(MethodType type) {
+    return "java.lang.invoke.MethodType.methodType(" + javaName(type.returnType()) + ".class, " +
+        type.parameterList().stream().map(t -> javaName(t) + ".class").collect(joining(", ")) + ")";
+  }
+
+  // The sub-trees of a matcher generated as shared methods, a shared method is identified by its source
+  // so the same sub-tree in two matchers, even with different case indexes, is the same shared method.
+  // The shared method returns the position of the matching case in indexes or -1.
+  // The function compiled returns the method handle of a shared method already compiled from its key, or null.
+  static final class SharedMethods implements CodeGenerator.Sharing {
+    record SharedMethod(String parameters, String body, MethodType type, boolean fallsThrough) {
+      String key() {
+        return parameters + "\n" + body;
+      }
+    }
+
+    private final Function<String, MethodHandle> compiled;
+    private final LinkedHashMap<String, Integer> slots = new LinkedHashMap<>();
+    private final ArrayList<SharedMethod> methods = new ArrayList<>();
+    private final ArrayList<MethodHandle> handles = new ArrayList<>();  // null if the method is not compiled
+
+    SharedMethods(Function<String, MethodHandle> compiled) {
+      this.compiled = requireNonNull(compiled);
+    }
+
+    SharedMethods() {
+      this(__ -> null);
+    }
+
+    @Override
+    public int share(CodeGenerator.SubTree subTree) {
+      var input = subTree.externals().size();
+      var parameters = javaName(subTree.type()) + " r" + input + ", " +
+          IntStream.range(0, input).mapToObj(i -> javaName(subTree.externalTypes().get(i)) + " r" + i + ", ").collect(joining()) +
+          "Object[] bindings";
+      var body = new StringBuilder();
+      var emitter = new JavaEmitter(body, 0, new HashMap<>(), subTree.indexes(), false);
+      var fallsThrough = subTree.generate(emitter);
+      if (fallsThrough) {
+        emitter.line("return -1;");
+      }
+      var type = MethodType.methodType(int.class, subTree.type())
+          .appendParameterTypes(subTree.externalTypes())
+          .appendParameterTypes(Object[].class);
+      var method = new SharedMethod(parameters, body.toString(), type, fallsThrough);
+      return slots.computeIfAbsent(method.key(), key -> {
+        methods.add(method);
+        handles.add(compiled.apply(key));
+        return methods.size() - 1;
+      });
+    }
+
+    @Override
+    public boolean fallsThrough(int method) {
+      return methods.get(method).fallsThrough();
+    }
+
+    List<SharedMethod> methods() {
+      return methods;
+    }
+
+    // the method handle of the shared method if it was already compiled, null if it is generated in the matcher
+    MethodHandle handle(int method) {
+      return handles.get(method);
+    }
+
+    // the class data of the matcher
+    List<MethodHandle> compiledHandles() {
+      return handles.stream().filter(handle -> handle != null).toList();
+    }
+  }
+
+  // Compiles the source in memory and defines it as a hidden class in the package of the lookup,
+  // the returned method handle has the type methodType(root).
+  // The types of the patterns must be accessible from the lookup class and visible from the class path.
+  public static MethodHandle compile(Node root, Lookup lookup) {
+    requireNonNull(root);
+    requireNonNull(lookup);
+    var bytecode = toBytecode(root, lookup.lookupClass().getPackageName(), new HashMap<>());
+    return define(lookup, bytecode, List.of(), methodType(root));
+  }
+
+  // Compiles a partial matcher, like compile() but the method handle returns -1 if no case matches,
+  // null and a subclass unknown at compile time are tested like any other value so no exception is thrown
+  public static MethodHandle compilePartial(Node root, Lookup lookup) {
+    requireNonNull(root);
+    requireNonNull(lookup);
+    var bytecode = toBytecode(root, lookup.lookupClass().getPackageName(), new HashMap<>(), null, Mode.PARTIAL);
+    return define(lookup, bytecode, List.of(), methodType(root));
+  }
+
+  // Compiles a predicate that returns true if a case matches, like a partial matcher that does not store
+  // the bindings, the predicate is an instance of the compiled class so the method test() calls match() directly.
+  @SuppressWarnings("unchecked")
+  public static <T> Predicate<T> compilePredicate(Node root, Class<T> type, Lookup lookup) {
+    requireNonNull(root);
+    requireNonNull(type);
+    requireNonNull(lookup);
+    if (!root.selectorTypes().equals(List.of(type))) {
+      throw new IllegalArgumentException("the tree switches on " + root.selectorTypes() + " not on " + type.getName());
+    }
+    var bytecode = toBytecode(root, lookup.lookupClass().getPackageName(), new HashMap<>(), null, Mode.PREDICATE);
+    try {
+      var matcherLookup = lookup.defineHiddenClass(bytecode, true);
+      var constructor = matcherLookup.findConstructor(matcherLookup.lookupClass(), MethodType.methodType(void.class));
+      return (Predicate<T>) constructor.invoke();
+    } catch (RuntimeException | Error e) {
+      throw e;
+    } catch (Throwable e) {
+      throw new IllegalStateException(e);
+    }
+  }
+
+  // defines the matcher as a hidden class, the class data is the list of the handles of the shared methods
+  static MethodHandle define(Lookup lookup, byte[] bytecode, List<MethodHandle> sharedHandles, MethodType type) {
+    var matcherLookup = defineClass(lookup, bytecode, sharedHandles);
+    try {
+      return matcherLookup.findStatic(matcherLookup.lookupClass(), METHOD_NAME, type);
+    } catch (IllegalAccessException | NoSuchMethodException e) {
+      throw new IllegalStateException(e);
+    }
+  }
+
+  static Lookup defineClass(Lookup lookup, byte[] bytecode, List<MethodHandle> sharedHandles) {
+    try {
+      return sharedHandles.isEmpty()?
+          lookup.defineHiddenClass(bytecode, true):
+          lookup.defineHiddenClassWithClassData(bytecode, List.copyOf(sharedHandles), true);
+    } catch (IllegalAccessException e) {
+      throw new IllegalStateException(e);
+    }
+  }
+
+  // the type of the method match, (TargetType, Object[])int or (Type0, Type1, ..., Object[])int for a tuple
+  public static MethodType methodType(Node root) {
+    return MethodType.methodType(int.class, root.selectorTypes()).appendParameterTypes(Object[].class);
+  }
+
+  // compiles the class of the matcher, the lines of the code of each node are stored in linesMap
+  static byte[] toBytecode(Node root, String packageName, Map<Node, Lines> linesMap) {
+    return toBytecode(root, packageName, linesMap, null, Mode.TOTAL);
+  }
+
+  static byte[] toBytecode(Node root, String packageName, Map<Node, Lines> linesMap, SharedMethods sharedMethods, Mode mode) {
+    var className = "PatternTreeMatcher";
+    var builder = new StringBuilder();
+    toJava(root, packageName, className, builder, linesMap, sharedMethods, mode);
+    return compile(packageName.isEmpty()? className: packageName + '.' + className, builder.toString());
+  }
+
+  static byte[] compile(String className, String source) {
+    var compiler = ToolProvider.getSystemJavaCompiler();
+    if (compiler == null) {
+      throw new IllegalStateException("no Java compiler available, the module java.compiler is missing");
+    }
+    var sourceFile = new SimpleJavaFileObject(URI.create("string:///" + className.replace('.', '/') + ".java"), Kind.SOURCE) {
+      @Override
+      public CharSequence getCharContent(boolean ignoreEncodingErrors) {
+        return source;
+      }
+    };
+    var outputs = new HashMap<String, ByteArrayOutputStream>();
+    var diagnostics = new DiagnosticCollector<JavaFileObject>();
+    try(JavaFileManager fileManager = new ForwardingJavaFileManager<>(compiler.getStandardFileManager(diagnostics, null, null)) {
+      @Override
+      public JavaFileObject getJavaFileForOutput(Location location, String name, Kind kind, FileObject sibling) {
+        return new SimpleJavaFileObject(URI.create("bytes:///" + name.replace('.', '/') + kind.extension), kind) {
+          @Override
+          public OutputStream openOutputStream() {
+            return outputs.computeIfAbsent(name, __ -> new ByteArrayOutputStream());
+          }
+        };
+      }
+    }) {
+      var options = List.of("-g", "-proc:none", "-Xlint:none");
+      var task = compiler.getTask(null, fileManager, diagnostics, options, null, List.of(sourceFile));
+      if (!task.call()) {
+        throw new IllegalArgumentException("can not compile " + className + "\n" +
+            diagnostics.getDiagnostics().stream().map(Object::toString).collect(joining("\n")));
+      }
+    } catch (IOException e) {
+      throw new UncheckedIOException(e);
+    }
+    var output = outputs.get(className);
+    if (output == null) {
+      throw new IllegalStateException("no class " + className + " generated");
+    }
+    return output.toByteArray();
+  }
+
+  static String javaName(Class<?> type) {
+    var name = type.getCanonicalName();
+    if (name == null) {
+      throw new IllegalArgumentException("a local or an anonymous class can not be named " + type.getName());
+    }
+    return name;
+  }
+
+  private static final class JavaEmitter extends CodeGenerator.TextEmitter {
+    private final Map<Node, Lines> linesMap;
+    private final List<Integer> indexes;  // the case indexes of a shared method or null
+    private final boolean predicate;
+    private final ArrayDeque<Integer> firstLines = new ArrayDeque<>();
+
+    private JavaEmitter(Appendable appendable, int depth, Map<Node, Lines> linesMap, List<Integer> indexes, boolean predicate) {
+      super(appendable, depth);
+      this.linesMap = linesMap;
+      this.indexes = indexes;
+      this.predicate = predicate;
+    }
+
+    @Override
+    public void enter(Node node) {
+      firstLines.push(lineCount() + 1);
+    }
+
+    @Override
+    public void exit(Node node) {
+      linesMap.put(node, new Lines(firstLines.pop(), lineCount()));
+    }
+
+    @Override
+    public void accessor(Class<?> type, int varnum, int input, String name) {
+      line(javaName(type) + " r" + varnum + " = r" + input + "." + name + "();");
+    }
+
+    @Override
+    public void parameter(Class<?> type, int varnum, int parameter) {
+      line(javaName(type) + " r" + varnum + " = p" + parameter + ";");
+    }
+
+    @Override
+    public void match(int index, List<Integer> bindings) {
+      if (predicate) {
+        line("return true;");
+        return;
+      }
+      for(var i = 0; i < bindings.size(); i++) {
+        line("bindings[" + i + "] = r" + bindings.get(i) + ";");
+      }
+      line("return " + (indexes == null? index: indexes.indexOf(index)) + ";");
+    }
+
+    @Override
+    public void callShared(int method, int varnum, int input, List<Integer> externals, List<Integer> indexes, boolean fallsThrough) {
+      var arguments = Stream.concat(Stream.of(input), externals.stream()).map(v -> "r" + v + ", ").collect(joining());
+      line("int r" + varnum + " = (int) SHARED_" + method + ".invokeExact(" + arguments + "bindings);");
+      if (fallsThrough) {
+        open("if (r" + varnum + " != -1) {");
+      }
+      line("return " + caseIndex("r" + varnum, indexes) + ";");
+      if (fallsThrough) {
+        end();
+      }
+    }
+
+    // the case index from its position in indexes
+    private static String caseIndex(String position, List<Integer> indexes) {
+      var base = indexes.get(0);
+      if (IntStream.range(0, indexes.size()).allMatch(i -> indexes.get(i) == base + i)) {
+        return base == 0? position: position + " + " + base;
+      }
+      return "switch (" + position + ") { " +
+          IntStream.range(0, indexes.size()).mapToObj(i -> "case " + i + " -> " + indexes.get(i) + "; ").collect(joining()) +
+          "default -> throw new AssertionError(); }";
+    }
+
+    @Override
+    public void requireNonNull(int input) {
+      line("java.util.Objects.requireNonNull(r" + input + ", \"null is a remainder\");");
+    }
+
+    @Override
+    public void implicitNullCheck(int input) {
+      line("// implicit null check of r" + input);
+    }
+
+    @Override
+    public void uncheckedCast(Class<?> type, int varnum, int input) {
+      var typename = javaName(type);
+      line(typename + " r" + varnum + ";");
+      open("try {");
+      line("r" + varnum + " = (" + typename + ") r" + input + ";");
+      reopen("catch (ClassCastException e) {  // a subclass unknown at compile time is a remainder");
+      line("throw (IncompatibleClassChangeError) new IncompatibleClassChangeError(e.getMessage()).initCause(e);");
+      end();
+    }
+
+    @Override
+    public void cast(Class<?> type, int varnum, int input) {
+      var typename = javaName(type);
+      line(typename + " r" + varnum + " = (" + typename + ") r" + input + ";");
+    }
+
+    @Override
+    public void ifInstanceOf(int input, Class<?> type, int varnum) {
+      open("if (r" + input + " instanceof " + javaName(type) + ") {");
+      cast(type, varnum, input);
+    }
+
+    @Override
+    public void ifNull(int input, Class<?> type, int varnum) {
+      open("if (r" + input + " == null) {");
+      cast(type, varnum, input);
+    }
+
+    @Override
+    public void ifNonNull(int input) {
+      open("if (r" + input + " != null) {");
+    }
+
+    @Override
+    public void block() {
+      open("{");
+    }
+
+    @Override
+    public void switchOn(Class<?> type, int input, String kind) {
+      open("switch (" + CodeGenerator.switchSelector(type, "r" + input) + ") {  // " + kind);
+    }
+
+    @Override
+    public void caseLabel(int key, Object constant) {
+      open("case " + key + " -> {" + CodeGenerator.caseComment(constant));
+    }
+
+    @Override
+    public void ifEquals(Class<?> type, int input, Object constant) {
+      open("if (" + CodeGenerator.equalsTest(type, "r" + input, constant) + ") {");
+    }
+  }
+}
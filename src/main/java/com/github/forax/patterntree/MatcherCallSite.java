@@ -0,0 +1,117 @@
+package com.github.forax.patterntree;
+
+import com.github.forax.patterntree.PatternTrees.Node;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodHandles.Lookup;
+import java.lang.invoke.MethodType;
+import java.lang.invoke.MutableCallSite;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Supplier;
+
+import static java.util.Objects.requireNonNull;
+
+// A call site on a matcher that can be replaced at runtime when the cases change,
+// the type of the call site is JavaSource.methodType(root), (Type0, Type1, ..., Object[])int.
+//
+// A new matcher is compiled without blocking the callers (in the background with updateAsync) and installed
+// atomically, a match already running continues with the old matcher, a compiled matcher being immutable,
+// the next matches use the new one. An update only deoptimizes the code that has inlined the call site.
+public final class MatcherCallSite extends MutableCallSite {
+  private static final MethodHandle NO_MATCH;
+  static {
+    try {
+      NO_MATCH = MethodHandles.lookup().findStatic(MatcherCallSite.class, "noMatch", MethodType.methodType(int.class));
+    } catch (NoSuchMethodException | IllegalAccessException e) {
+      throw new AssertionError(e);
+    }
+  }
+
+  private final Lookup lookup;
+  private final List<Class<?>> selectorTypes;
+  private final AtomicLong versions = new AtomicLong();
+  private long installedVersion;  // guarded by this
+
+  // the lookup is used to define the matchers, the types of the patterns must be accessible from it
+  public MatcherCallSite(Lookup lookup, List<Class<?>> selectorTypes) {
+    super(type(selectorTypes));
+    this.lookup = requireNonNull(lookup);
+    this.selectorTypes = List.copyOf(selectorTypes);
+    setTarget(MethodHandles.dropArguments(NO_MATCH, 0, type().parameterList()));
+  }
+
+  private static MethodType type(List<Class<?>> selectorTypes) {
+    if (selectorTypes.isEmpty()) {
+      throw new IllegalArgumentException("no selector type");
+    }
+    return MethodType.methodType(int.class, selectorTypes).appendParameterTypes(Object[].class);
+  }
+
+  private static int noMatch() {
+    throw new MatchException("no matcher installed", null);
+  }
+
+  public List<Class<?>> selectorTypes() {
+    return selectorTypes;
+  }
+
+  // Compiles the tree and installs the matcher
+  public void update(Node root) {
+    install(versions.incrementAndGet(), compile(root));
+  }
+
+  // the call site must have one selector type
+  public void update(List<Case> cases) {
+    update(PatternTrees.createTree(selectorType(), cases));
+  }
+
+  public void updateTuple(List<TupleCase> cases) {
+    update(PatternTrees.createTree(selectorTypes, cases));
+  }
+
+  // Creates the tree and compiles the matcher using the executor, and then installs the matcher,
+  // if several updates are running, the matcher of the last update submitted wins
+  public CompletableFuture<Void> updateAsync(List<Case> cases, Executor executor) {
+    var cases2 = List.copyOf(cases);
+    var selectorType = selectorType();
+    return updateAsync(() -> PatternTrees.createTree(selectorType, cases2), executor);
+  }
+
+  public CompletableFuture<Void> updateTupleAsync(List<TupleCase> cases, Executor executor) {
+    var cases2 = List.copyOf(cases);
+    return updateAsync(() -> PatternTrees.createTree(selectorTypes, cases2), executor);
+  }
+
+  private CompletableFuture<Void> updateAsync(Supplier<Node> treeSupplier, Executor executor) {
+    requireNonNull(executor);
+    var version = versions.incrementAndGet();
+    return CompletableFuture.runAsync(() -> install(version, compile(treeSupplier.get())), executor);
+  }
+
+  private Class<?> selectorType() {
+    if (selectorTypes.size() != 1) {
+      throw new IllegalArgumentException("the call site switches on a tuple " + selectorTypes + ", use a TupleCase");
+    }
+    return selectorTypes.get(0);
+  }
+
+  private MethodHandle compile(Node root) {
+    if (!root.selectorTypes().equals(selectorTypes)) {
+      throw new IllegalArgumentException("the tree switches on " + root.selectorTypes() + " not on " + selectorTypes);
+    }
+    return JavaSource.compile(root, lookup);
+  }
+
+  private synchronized void install(long version, MethodHandle target) {
+    if (version < installedVersion) {  // a more recent update is already installed
+      return;
+    }
+    installedVersion = version;
+    setTarget(target);
+    syncAll(new MutableCallSite[] { this });
+  }
+}
@@ -0,0 +1,104 @@
+package com.github.forax.patterntree;
+
+import com.github.forax.patterntree.PatternTrees.Node;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles.Lookup;
+import java.lang.ref.Reference;
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
+import java.util.HashMap;
+import java.util.Map;
+
+import static java.util.Objects.requireNonNull;
+
+// Compiles matchers like JavaSource.compile() but the record deconstructions (a record pattern and
+// the patterns that follow it) are generated as shared methods, the same sub-tree in several matchers,
+// even if the indexes of the cases are different, is compiled once and called by all the matchers.
+//
+// A shared method is generated in the class of the first matcher that uses it, and weakly held by the registry,
+// it is kept alive by the matchers that call it, so its class can be unloaded once all those matchers are unreachable.
+public final class MatcherRegistry {
+  private final Lookup lookup;
+  private final HashMap<String, SharedReference> sharedMap = new HashMap<>();  // guarded by this
+  private final ReferenceQueue<MethodHandle> queue = new ReferenceQueue<>();
+
+  private static final class SharedReference extends WeakReference<MethodHandle> {
+    private final String key;
+
+    private SharedReference(String key, MethodHandle referent, ReferenceQueue<MethodHandle> queue) {
+      super(referent, queue);
+      this.key = key;
+    }
+  }
+
+  // the lookup is used to define the matchers and the shared methods, the types of the patterns must be accessible from it
+  public MatcherRegistry(Lookup lookup) {
+    this.lookup = requireNonNull(lookup);
+  }
+
+  // Compiles the matcher, the returned method handle has the type JavaSource.methodType(root),
+  // the shared methods not already compiled are generated in the class of the matcher
+  // so no other class is defined, the other matchers then use them through their method handles.
+  // The source is compiled by javac without holding the lock of the registry, if two matchers
+  // generate the same new shared method concurrently, the first one published is the one shared.
+  public MethodHandle compile(Node root) {
+    requireNonNull(root);
+    var sharedMethods = new JavaSource.SharedMethods(this::shared);
+    var bytecode = JavaSource.toBytecode(root, lookup.lookupClass().getPackageName(), new HashMap<>(), sharedMethods, JavaSource.Mode.TOTAL);
+    var matcherLookup = JavaSource.defineClass(lookup, bytecode, sharedMethods.compiledHandles());
+    var matcherClass = matcherLookup.lookupClass();
+    var methods = sharedMethods.methods();
+    try {
+      var generated = new HashMap<String, MethodHandle>();
+      for(var i = 0; i < methods.size(); i++) {
+        if (sharedMethods.handle(i) != null) {
+          continue;
+        }
+        // the handle stored in the field SHARED_i, so it is kept alive by the class of the matcher
+        var handle = (MethodHandle) matcherLookup.findStaticGetter(matcherClass, "SHARED_" + i, MethodHandle.class).invoke();
+        generated.put(methods.get(i).key(), handle);
+      }
+      publish(generated);
+      return matcherLookup.findStatic(matcherClass, JavaSource.METHOD_NAME, JavaSource.methodType(root));
+    } catch (RuntimeException | Error e) {
+      throw e;
+    } catch (Throwable e) {
+      throw new IllegalStateException(e);
+    }
+  }
+
+  // the method handle of a shared method already compiled or null
+  private synchronized MethodHandle shared(String key) {
+    expunge();
+    var reference = sharedMap.get(key);
+    return reference == null? null: reference.get();
+  }
+
+  // registers the shared methods generated in the class of a matcher, unless another matcher
+  // has registered the same method in the meantime
+  private synchronized void publish(Map<String, MethodHandle> generated) {
+    expunge();
+    generated.forEach((key, handle) -> {
+      var reference = sharedMap.get(key);
+      if (reference == null || reference.refersTo(null)) {
+        sharedMap.put(key, new SharedReference(key, handle, queue));
+      }
+    });
+  }
+
+  // the number of shared methods used by the matchers still alive
+  public synchronized int sharedCount() {
+    expunge();
+    return (int) sharedMap.values().stream().filter(reference -> !reference.refersTo(null)).count();
+  }
+
+  // removes the shared methods that are not used anymore
+  private void expunge() {
+    Reference<? extends MethodHandle> reference;
+    while((reference = queue.poll()) != null) {
+      var sharedReference = (SharedReference) reference;
+      sharedMap.remove(sharedReference.key, sharedReference);
+    }
+  }
+}
@@ -0,0 +1,324 @@
+package com.github.forax.patterntree;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles.Lookup;
+import java.lang.invoke.MethodType;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Flow;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static java.util.Objects.requireNonNull;
+
+// A subscriber that routes the items of an upstream publisher to one subscriber per case,
+// the case of an item is found by the matcher compiled from the cases, like a switch on the items.
+//
+// Each downstream subscriber has its own demand and a buffer of bufferSize items, the router only requests
+// items from the upstream if all the buffers have room, so a slow subscriber slows down the upstream.
+// The items are matched and delivered in batches by a task running on the executor (a virtual thread
+// executor works too), the task runs one at a time, so the signals to a subscriber are never concurrent.
+// Apart from the buffers allocated once, routing an item does not allocate, the bindings of the cases
+// are not used so the matcher is compiled from the cases with all the bindings unnamed.
+//
+// If no case matches an item, the upstream is cancelled and the downstream subscribers receive the MatchException.
+// If the upstream sends more items than requested, it is cancelled and the downstream subscribers receive
+// an IllegalStateException.
+public final class MatcherRouter<T> implements Flow.Subscriber<T> {
+  private static final Object[] NO_BINDINGS = new Object[0];
+
+  private final MethodHandle matcher;  // (Object, Object[])int
+  private final int[] indexes;  // sorted
+  private final Downstream[] downstreams;  // in the order of indexes
+  private final Executor executor;
+  private final int bufferSize;
+
+  private final ArrayDeque<T> inbound;  // guarded by inbound
+  private final AtomicInteger wip = new AtomicInteger();  // the number of signals not yet seen by the drain task
+  private volatile boolean subscribed;
+  private volatile Flow.Subscription upstream;  // set once all the downstream subscribers have received onSubscribe
+  private volatile boolean done;
+  private volatile Throwable error;
+
+  // only accessed by the drain task
+  private final Object[] batch;
+  private long outstanding;  // items requested to the upstream and not yet routed
+  private boolean terminated;
+
+  private final class Downstream implements Flow.Subscription {
+    private final Flow.Subscriber<? super T> subscriber;
+    private final ArrayDeque<T> buffer;  // only accessed by the drain task
+    private final AtomicLong demand = new AtomicLong();
+    private volatile boolean cancelled;
+    private volatile boolean invalidRequest;
+    private boolean terminated;  // only accessed by the drain task
+
+    private Downstream(Flow.Subscriber<? super T> subscriber) {
+      this.subscriber = subscriber;
+      this.buffer = new ArrayDeque<>(bufferSize);
+    }
+
+    @Override
+    public void request(long n) {
+      if (n <= 0) {
+        invalidRequest = true;
+      } else {
+        demand.getAndAccumulate(n, (d, m) -> d + m < 0? Long.MAX_VALUE: d + m);
+      }
+      signal();
+    }
+
+    @Override
+    public void cancel() {
+      cancelled = true;
+      signal();
+    }
+  }
+
+  // The matcher is compiled from the cases with the lookup, the types of the patterns must be accessible from it,
+  // each case index must have a subscriber
+  @SuppressWarnings("unchecked")
+  public MatcherRouter(Lookup lookup, Class<T> type, List<Case> cases, Map<Integer, ? extends Flow.Subscriber<? super T>> subscribers,
+                       Executor executor, int bufferSize) {
+    requireNonNull(lookup);
+    requireNonNull(type);
+    requireNonNull(subscribers);
+    this.executor = requireNonNull(executor);
+    if (bufferSize <= 0) {
+      throw new IllegalArgumentException("bufferSize must be positive " + bufferSize);
+    }
+    this.bufferSize = bufferSize;
+    var root = PatternTrees.createTree(type, cases.stream().map(c -> new Case(unnamed(c.pattern()), c.index())).toList());
+    this.matcher = JavaSource.compile(root, lookup)
+        .asType(MethodType.methodType(int.class, Object.class, Object[].class));
+    this.indexes = cases.stream().mapToInt(Case::index).distinct().sorted().toArray();
+    this.downstreams = new MatcherRouter.Downstream[indexes.length];
+    for(var i = 0; i < indexes.length; i++) {
+      var subscriber = subscribers.get(indexes[i]);
+      if (subscriber == null) {
+        throw new IllegalArgumentException("no subscriber for the case " + indexes[i]);
+      }
+      downstreams[i] = new Downstream(subscriber);
+    }
+    this.batch = new Object[bufferSize];
+    this.inbound = new ArrayDeque<>(bufferSize);
+  }
+
+  // the same pattern with no binding
+  private static Pattern unnamed(Pattern pattern) {
+    return switch (pattern) {
+      case Pattern.TypePattern typePattern -> new Pattern.TypePattern(typePattern.type(), "_");
+      case Pattern.ParenthesizedPattern parenthesizedPattern -> new Pattern.ParenthesizedPattern(unnamed(parenthesizedPattern.pattern()));
+      case Pattern.ConstantPattern constantPattern -> constantPattern;
+      case Pattern.RecordPattern recordPattern ->
+          new Pattern.RecordPattern(recordPattern.type(), recordPattern.patterns().stream().map(MatcherRouter::unnamed).toList(), "_");
+    };
+  }
+
+  @Override
+  public void onSubscribe(Flow.Subscription subscription) {
+    requireNonNull(subscription);
+    if (subscribed) {
+      subscription.cancel();
+      return;
+    }
+    subscribed = true;
+    // the drain task does nothing until upstream is set, so onSubscribe is always the first signal
+    for(var downstream: downstreams) {
+      try {
+        downstream.subscriber.onSubscribe(downstream);
+      } catch (RuntimeException e) {  // a subscriber that throws is cancelled
+        downstream.cancelled = true;
+      }
+    }
+    upstream = subscription;
+    signal();
+  }
+
+  @Override
+  public void onNext(T item) {
+    requireNonNull(item);
+    synchronized (inbound) {
+      inbound.offer(item);
+    }
+    signal();
+  }
+
+  @Override
+  public void onError(Throwable throwable) {
+    requireNonNull(throwable);
+    error = throwable;
+    done = true;
+    signal();
+  }
+
+  @Override
+  public void onComplete() {
+    done = true;
+    signal();
+  }
+
+  private void signal() {
+    if (wip.getAndIncrement() == 0) {
+      executor.execute(this::drain);
+    }
+  }
+
+  private void drain() {
+    var missed = 1;
+    do {
+      if (!terminated) {
+        try {
+          drainOnce();
+        } catch (RuntimeException | Error e) {  // the router stops but wip is always decremented
+          fail(e);
+        }
+      }
+      missed = wip.addAndGet(-missed);
+    } while (missed != 0);
+  }
+
+  private void fail(Throwable throwable) {
+    try {
+      var subscription = upstream;
+      if (subscription != null) {
+        subscription.cancel();
+      }
+    } catch (RuntimeException e) {
+      // the upstream is cancelled anyway
+    }
+    terminate(throwable);
+  }
+
+  @SuppressWarnings("unchecked")
+  private void drainOnce() {
+    var subscription = upstream;
+    if (subscription == null) {
+      return;
+    }
+    // route the received items, there are at most outstanding items (less than bufferSize)
+    int count;
+    synchronized (inbound) {
+      count = inbound.size();
+      for(var i = 0; i < count && count <= outstanding; i++) {
+        batch[i] = inbound.poll();
+      }
+    }
+    if (count > outstanding) {
+      fail(new IllegalStateException("the upstream sent " + count + " items, only " + outstanding + " were requested"));
+      return;
+    }
+    outstanding -= count;
+    for(var i = 0; i < count; i++) {
+      var item = (T) batch[i];
+      batch[i] = null;
+      int index;
+      try {
+        index = (int) matcher.invokeExact((Object) item, NO_BINDINGS);
+      } catch (Throwable e) {  // a MatchException or a remainder
+        Arrays.fill(batch, i, count, null);
+        fail(e);
+        return;
+      }
+      var downstream = downstreams[Arrays.binarySearch(indexes, index)];
+      if (!downstream.terminated && !downstream.cancelled) {
+        downstream.buffer.offer(item);
+      }
+    }
+
+    // deliver the buffered items
+    var maxBuffered = 0;
+    var active = 0;
+    for(var downstream: downstreams) {
+      if (downstream.terminated) {
+        continue;
+      }
+      if (downstream.invalidRequest) {
+        terminate(downstream, new IllegalArgumentException("non positive request"));
+        continue;
+      }
+      if (downstream.cancelled) {
+        downstream.terminated = true;
+        downstream.buffer.clear();
+        continue;
+      }
+      deliver(downstream);
+      if (!downstream.terminated) {
+        active++;
+        maxBuffered = Math.max(maxBuffered, downstream.buffer.size());
+      }
+    }
+    if (active == 0) {
+      if (!done) {
+        subscription.cancel();
+      }
+      terminated = true;
+      return;
+    }
+
+    // request the items that fit in all the buffers
+    if (!done) {
+      var room = bufferSize - maxBuffered - outstanding;
+      if (room > 0) {
+        outstanding += room;
+        subscription.request(room);
+      }
+    }
+  }
+
+  private void deliver(Downstream downstream) {
+    var subscriber = downstream.subscriber;
+    var buffer = downstream.buffer;
+    try {
+      while (!buffer.isEmpty() && downstream.demand.get() > 0 && !downstream.cancelled) {
+        downstream.demand.decrementAndGet();
+        subscriber.onNext(buffer.poll());
+      }
+    } catch (RuntimeException e) {  // a subscriber that throws is cancelled
+      downstream.cancelled = true;
+      downstream.terminated = true;
+      buffer.clear();
+      return;
+    }
+    if (done && !downstream.cancelled && buffer.isEmpty() && isInboundEmpty()) {
+      terminate(downstream, error);
+    }
+  }
+
+  // sends onComplete (if throwable is null) or onError, an exception thrown by the subscriber is ignored
+  // so the drain task always completes
+  private void terminate(Downstream downstream, Throwable throwable) {
+    downstream.terminated = true;
+    downstream.buffer.clear();
+    try {
+      if (throwable == null) {
+        downstream.subscriber.onComplete();
+      } else {
+        downstream.subscriber.onError(throwable);
+      }
+    } catch (RuntimeException e) {
+      downstream.cancelled = true;
+    }
+  }
+
+  private boolean isInboundEmpty() {
+    synchronized (inbound) {
+      return inbound.isEmpty();
+    }
+  }
+
+  private void terminate(Throwable throwable) {
+    terminated = true;
+    synchronized (inbound) {
+      inbound.clear();
+    }
+    for(var downstream: downstreams) {
+      if (!downstream.terminated) {
+        terminate(downstream, throwable);
+      }
+    }
+  }
+}
@@ -2,9 +2,12 @@ package com.github.forax.patterntree;
 
 import com.github.forax.patterntree.PatternTrees.Node;
 
+import java.io.IOException;
+import java.io.UncheckedIOException;
 import java.util.HashMap;
 import java.util.stream.Stream;
 
+import static java.util.Objects.requireNonNull;
 import static java.util.stream.Collectors.joining;
 
 // Generates diagram using mermaid-js spec https://mermaid-js.github.io
@@ -16,18 +19,55 @@ public final class Mermaid {
 
   public static String toMermaidJS(Node root) {
      var builder = new StringBuilder();
-     builder.append("flowchart LR\n");
-     toMermaidJS(root, builder, new Env());
+     toMermaidJS(root, builder);
      return builder.toString();
   }
 
+  public static void toMermaidJS(Node root, Appendable appendable) {
+    toMermaidJS(root, appendable, Integer.MAX_VALUE, Integer.MAX_VALUE);
+  }
+
+  // Streams the diagram to the appendable in one pass over the tree,
+  // the sub-trees deeper than maxDepth or after the first maxNodes nodes are collapsed into one node.
+  public static void toMermaidJS(Node root, Appendable appendable, int maxDepth, int maxNodes) {
+    requireNonNull(root);
+    requireNonNull(appendable);
+    if (maxDepth < 0 || maxNodes < 0) {
+      throw new IllegalArgumentException("maxDepth or maxNodes is negative");
+    }
+    try {
+      appendable.append("flowchart LR\n");
+      toMermaidJS(root, 0, appendable, new Env(maxDepth, maxNodes));
+    } catch (IOException e) {
+      throw new UncheckedIOException(e);
+    }
+  }
+
   private static final class Env {
+    private final int maxDepth;
+    private final int maxNodes;
     private int id;
+    private int nodeCount;
     private final HashMap<Node, Integer> idMap = new HashMap<>();
+    private final HashMap<Node, Integer> depthMap = new HashMap<>();
+
+    private Env(int maxDepth, int maxNodes) {
+      this.maxDepth = maxDepth;
+      this.maxNodes = maxNodes;
+    }
 
     public int id(Node node) {
       return idMap.computeIfAbsent(node, __ -> id++);
     }
+
+    // the distance between a node and one of its ancestors
+    public int distance(Node ancestor, int depth) {
+      var ancestorDepth = depthMap.get(ancestor);
+      if (ancestorDepth == null) {
+        return -1;
+      }
+      return depth - ancestorDepth;
+    }
   }
 
   private static String simpleName(Class<?> clazz) {
@@ -40,29 +80,28 @@ public final class Mermaid {
     return name.substring(Math.max(index, index2) + 1);
   }
 
-  private static int distance(Node start, Node end) {
-    if (start == end) {
-      return 0;
-    }
-    for(var n: start.map.values()) {
-      var d = distance(n, end);
-      if (d != -1) {
-        return 1 + d;
-      }
-    }
-    var n = start.componentNode;
-    if (n != null) {
-      var d = distance(n, end);
-      if (d != -1) {
-        return 1 + d;
-      }
-    }
-    return -1;
+  private static String constantName(Object constant) {
+    return switch (constant) {
+      case Enum<?> enumConstant -> enumConstant.name();
+      case String s -> "'" + s.replace("\"", "#quot;") + "'";
+      case Character c -> "'" + c + "'";
+      default -> constant.toString();
+    };
   }
 
-  private static void toMermaidJS(Node node, StringBuilder builder, Env env) {
+  private static void toMermaidJS(Node node, int depth, Appendable appendable, Env env) throws IOException {
     var id = env.id(node);
 
+    if (depth > env.maxDepth || env.nodeCount >= env.maxNodes) {
+      appendable.append("""
+            style id%d stroke-dasharray: 2 2
+            id%d("...")
+          """.formatted(id, id));
+      return;
+    }
+    env.nodeCount++;
+    env.depthMap.put(node, depth);
+
     var style = Stream.of("")
         .<String>mapMulti((__, consumer) -> {
           if (node.index != Node.UNINITIALIZED) {
@@ -74,7 +113,7 @@ public final class Mermaid {
         })
         .collect(joining(","));
     if (!style.isEmpty()) {
-      builder.append("""
+      appendable.append("""
             style id%d %s
           """.formatted(id, style));
     }
@@ -85,36 +124,51 @@ public final class Mermaid {
             consumer.accept(simpleName(node.targetClass));
           }
           if (node.index != Node.UNINITIALIZED) {
-            var bindings = node.bindingNodes.stream().map(n -> "" + distance(n, node)).collect(joining(","));
+            var bindings = node.bindingNodes.stream().map(n -> "" + env.distance(n, depth)).collect(joining(","));
             consumer.accept(node.index + "(" + bindings + ')');
           }
 
         })
         .collect(joining(", "));
 
-    builder.append("""
+    appendable.append("""
               id%d("%s")
             """.formatted(id, text));
 
-    node.map.forEach((type, nextNode) -> {
-      var nextId = env.id(nextNode);
-      var label = simpleName(type);
-      builder.append("""
+    for(var entry: node.map.entrySet()) {
+      var nextId = env.id(entry.getValue());
+      var label = simpleName(entry.getKey());
+      appendable.append("""
             id%d-- %s --oid%d
           """.formatted(id, label, nextId));
-    });
+    }
+
+    for(var entry: node.constants.entrySet()) {
+      var nextId = env.id(entry.getValue());
+      appendable.append("""
+            id%d-- "%s" --oid%d
+          """.formatted(id, constantName(entry.getKey()), nextId));
+    }
 
     if (node.componentNode != null) {
       var nextId = env.id(node.componentNode);
-      var label = distance(node.componentNode.componentSource, node) + "." + node.componentNode.component.getName();
-      builder.append("""
+      var componentNode = node.componentNode;
+      var label = componentNode.parameter != Node.UNINITIALIZED?
+          "p" + componentNode.parameter:
+          env.distance(componentNode.componentSource, depth) + "." + componentNode.component.getName();
+      appendable.append("""
             id%d-- "%s" -->id%d
           """.formatted(id, label, nextId));
     }
 
-    node.map.values().forEach(n -> toMermaidJS(n, builder, env));
+    for(var nextNode: node.map.values()) {
+      toMermaidJS(nextNode, depth + 1, appendable, env);
+    }
+    for(var nextNode: node.constants.values()) {
+      toMermaidJS(nextNode, depth + 1, appendable, env);
+    }
     if (node.componentNode != null) {
-      toMermaidJS(node.componentNode, builder, env);
+      toMermaidJS(node.componentNode, depth + 1, appendable, env);
     }
   }
 }
@@ -21,6 +21,12 @@ import static java.util.Objects.requireNonNull;
 //    ( [ RecordComponentPatternList ] )
 //RecordComponentPatternList :
 //    Pattern { , Pattern }
+//
+// and as an extension, constant patterns (enum constants, int/long/char constants and string literals)
+// that test a value of the same type using a single switch instead of a cascade of guards
+//
+//ConstantPattern:
+//    ConstantExpression
 public sealed interface Pattern {
   record TypePattern(Class<?> type, String identifier) implements Pattern {
     public TypePattern {
@@ -35,6 +41,16 @@ public sealed interface Pattern {
     }
   }
 
+  record ConstantPattern(Object constant) implements Pattern {
+    public ConstantPattern {
+      requireNonNull(constant);
+      if (!(constant instanceof Enum<?> || constant instanceof String
+          || constant instanceof Integer || constant instanceof Long || constant instanceof Character)) {
+        throw new IllegalArgumentException("invalid constant " + constant);
+      }
+    }
+  }
+
   record RecordPattern(Class<? extends Record> type, List<Pattern> patterns, String identifier) implements Pattern {
     public RecordPattern(Class<? extends Record> type, Pattern... patterns) {
       this(type, List.of(patterns), "_");
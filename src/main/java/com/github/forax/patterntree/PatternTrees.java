@@ -1,17 +1,26 @@
 package com.github.forax.patterntree;
 
+import com.github.forax.patterntree.Pattern.ConstantPattern;
 import com.github.forax.patterntree.Pattern.ParenthesizedPattern;
 import com.github.forax.patterntree.Pattern.RecordPattern;
 import com.github.forax.patterntree.Pattern.TypePattern;
 
+import java.lang.annotation.Annotation;
+import java.lang.reflect.Modifier;
 import java.lang.reflect.RecordComponent;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashMap;
+import java.util.IdentityHashMap;
 import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.function.Predicate;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
 
 import static java.util.Objects.requireNonNull;
-import static java.util.stream.Collectors.joining;
 
 public final class PatternTrees {
   private PatternTrees() {
@@ -27,25 +36,66 @@ public final class PatternTrees {
     return root;
   }
 
+  // Creates the tree of a switch on several values, the root is a virtual tuple whose components are the values,
+  // so the matcher takes the values as parameters and no tuple is allocated
+  public static Node createTree(List<Class<?>> targetTypes, List<TupleCase> items) {
+    if (targetTypes.isEmpty()) {
+      throw new IllegalArgumentException("no target type");
+    }
+    var root = new Node(Node.Tuple.class, null, null);
+    root.selectorTypes = List.copyOf(targetTypes);
+    for(var item: items) {
+      var patterns = item.patterns();
+      if (patterns.size() != targetTypes.size()) {
+        throw new IllegalArgumentException("case " + item.index() + " should have " + targetTypes.size() + " patterns");
+      }
+      var bindingNodes = new ArrayList<Node>();
+      var node = root;
+      for (int i = 0; i < patterns.size(); i++) {
+        Node child;
+        if (node.componentNode == null) {
+          child = new Node(targetTypes.get(i), null, root);
+          child.parameter = i;
+          node.componentNode = child;
+        } else {
+          child = node.componentNode;
+        }
+        node = child.insert(patterns.get(i), bindingNodes);
+      }
+      node.setIndex(item.index(), bindingNodes);
+    }
+    return root;
+  }
+
   public static final class Node {
-    private static final class NullWitness {
+    static final class NullWitness {
       private NullWitness() { throw new AssertionError(); }
     }
 
+    // the type of the root of a switch on several values
+    static final class Tuple {
+      private Tuple() { throw new AssertionError(); }
+    }
+
     static final int UNINITIALIZED = Integer.MIN_VALUE;
 
     final Class<?> targetClass;
     private boolean isRecord;
     final LinkedHashMap<Class<?>, Node> map = new LinkedHashMap<>();
+    final LinkedHashMap<Object, Node> constants = new LinkedHashMap<>();
+    int constantPosition = UNINITIALIZED;  // position of the constant switch among the transitions of map
     final RecordComponent component;
 
     final Node componentSource;
+    int parameter = UNINITIALIZED;  // the index of the value if the component is one of the values of a tuple
     Node componentNode;
+    boolean nonNull;  // the value of the component is never null
 
     int index = UNINITIALIZED;
     List<Node> bindingNodes;
 
     boolean total;
+    private List<Class<?>> selectorTypes;
 
 
     @Override
@@ -54,6 +104,7 @@ public final class PatternTrees {
           "targetClass=" + targetClass +
           ", isRecord=" + isRecord +
           ", map=" + map +
+          ", constants=" + constants +
           ", component=" + component +
           //", componentSource=" + componentSource +
           ", componentNode=" + componentNode +
@@ -81,12 +132,32 @@ public final class PatternTrees {
           yield map.computeIfAbsent(nodeType, __ -> new Node(type, null, null))
               .addToBindingNodes(bindingNodes, !typePattern.identifier().equals("_"));
         }
+        case ConstantPattern constantPattern -> {
+          var constant = constantPattern.constant();
+          var constantType = constantType(constant);
+          if (constantType != wrap(targetClass)) {
+            // there is no type test before the switch on the constants, so the value must have the type of the constant
+            throw new IllegalArgumentException("constant " + constant + " of type " + constantType.getName()
+                + " is not compatible with " + describe() + " of type " + targetClass.getName()
+                + ", a constant pattern requires a value of the type of the constant");
+          }
+          if (constants.isEmpty()) {
+            constantPosition = map.size();
+          }
+          yield constants.computeIfAbsent(constant, __ -> new Node(targetClass, null, null));
+        }
         case RecordPattern recordPattern -> {
           var type = recordPattern.type();
           var components = type.getRecordComponents();
           var patterns = recordPattern.patterns();
 
           var first = map.computeIfAbsent(type, __ -> new Node(type, null, null));
+          if (!first.isRecord && first.componentNode != null) {
+            // the node of the type pattern already continues with the next component of the enclosing record,
+            // and a node has only one transition per type
+            throw new IllegalArgumentException("record pattern " + type.getName() + "(...) after a type pattern on "
+                + type.getName() + " followed by other components is not supported");
+          }
           first.isRecord = true;
           var node = first;
 
@@ -134,13 +205,326 @@ public final class PatternTrees {
       total = true;
     }
 
+    // Declares that the values of a component of a record are never null, for example because the canonical
+    // constructor calls requireNonNull, so the null checks and the null transitions on those values are not generated.
+    public void setNonNull(Class<?> recordType, String componentName) {
+      requireNonNull(recordType);
+      requireNonNull(componentName);
+      if (!recordType.isRecord()) {
+        throw new IllegalArgumentException(recordType.getName() + " is not a record");
+      }
+      if (Arrays.stream(recordType.getRecordComponents()).noneMatch(component -> component.getName().equals(componentName))) {
+        throw new IllegalArgumentException("no component " + componentName + " in " + recordType.getName());
+      }
+      markNonNull(recordType, componentName);
+    }
+
+    // Declares non-null the components of the records of the tree annotated (or whose type is annotated)
+    // by one of the annotation types, only the annotations that the canonical constructors enforce should be used,
+    // a null value of such a component would silently match the wrong case
+    public void setNonNull(Set<Class<? extends Annotation>> annotationTypes) {
+      requireNonNull(annotationTypes);
+      markNonNull(Set.copyOf(annotationTypes), new HashMap<>());
+    }
+
+    // annotatedMap caches the names of the annotated components of each record
+    private void markNonNull(Set<Class<? extends Annotation>> annotationTypes, HashMap<Class<?>, Set<String>> annotatedMap) {
+      if (component != null) {
+        var names = annotatedMap.computeIfAbsent(component.getDeclaringRecord(), recordType ->
+            Arrays.stream(recordType.getRecordComponents())
+                .filter(c -> isAnnotated(c, annotationTypes))
+                .map(RecordComponent::getName)
+                .collect(Collectors.toUnmodifiableSet()));
+        if (names.contains(component.getName())) {
+          nonNull = true;
+        }
+      }
+      map.values().forEach(n -> n.markNonNull(annotationTypes, annotatedMap));
+      constants.values().forEach(n -> n.markNonNull(annotationTypes, annotatedMap));
+      if (componentNode != null) {
+        componentNode.markNonNull(annotationTypes, annotatedMap);
+      }
+    }
+
+    private static boolean isAnnotated(RecordComponent component, Set<Class<? extends Annotation>> annotationTypes) {
+      return Stream.concat(Arrays.stream(component.getAnnotations()), Arrays.stream(component.getAnnotatedType().getAnnotations()))
+          .anyMatch(annotation -> annotationTypes.contains(annotation.annotationType()));
+    }
+
+    private void markNonNull(Class<?> recordType, String componentName) {
+      if (component != null && component.getDeclaringRecord() == recordType && component.getName().equals(componentName)) {
+        nonNull = true;
+      }
+      map.values().forEach(n -> n.markNonNull(recordType, componentName));
+      constants.values().forEach(n -> n.markNonNull(recordType, componentName));
+      if (componentNode != null) {
+        componentNode.markNonNull(recordType, componentName);
+      }
+    }
+
+    // Walks the tree and marks as total all the nodes on a sealed type whose transitions cover all the permitted
+    // subclasses, so the last instanceof can be replaced by a cast, if a value not matched by the node
+    // (null or a subclass unknown at compile time) is a remainder.
+    public void inferTotality() {
+      var unconditionals = new IdentityHashMap<Node, Unconditional>();
+      computeUnconditionals(unconditionals);
+      inferTotality(false, unconditionals);
+    }
+
+    // if the sub-tree of a node is unconditional once inferred without and with a fallback,
+    // fallback is true if a value that falls out of the node can still be matched by a following transition,
+    // with a fallback no node of the sub-tree can be inferred total
+    private record Unconditional(boolean withoutFallback, boolean withFallback) {
+      boolean get(boolean fallback) {
+        return fallback? withFallback: withoutFallback;
+      }
+    }
+
+    // the inferred totality of a node and the fallback of each of its sub-trees
+    private record Decision(boolean total, IdentityHashMap<Node, Boolean> fallbacks) {}
+
+    // computes bottom-up if each sub-tree is unconditional, so each node is visited once
+    private void computeUnconditionals(IdentityHashMap<Node, Unconditional> unconditionals) {
+      map.values().forEach(n -> n.computeUnconditionals(unconditionals));
+      constants.values().forEach(n -> n.computeUnconditionals(unconditionals));
+      if (componentNode != null) {
+        componentNode.computeUnconditionals(unconditionals);
+      }
+      unconditionals.put(this, new Unconditional(
+          isUnconditional(decide(false, unconditionals), unconditionals),
+          isUnconditional(decide(true, unconditionals), unconditionals)));
+    }
+
+    private boolean isUnconditional(Decision decision, IdentityHashMap<Node, Unconditional> unconditionals) {
+      return isUnconditional(decision.total, n -> unconditionals.get(n).get(decision.fallbacks.get(n)));
+    }
+
+    // The value of a transition of a total node does not fall to the next transitions, so the node is total
+    // if the transitions with a sub-tree unconditional without a fallback cover the sealed type,
+    // the other sub-trees (all of them if the node is not total) can fail so they have a fallback.
+    private Decision decide(boolean fallback, IdentityHashMap<Node, Unconditional> unconditionals) {
+      var candidate = total || (!fallback && canBeTotal());
+      var fallbacks = new IdentityHashMap<Node, Boolean>();
+      var hasNexts = new IdentityHashMap<Node, Boolean>();
+      var iterator = map.values().iterator();
+      while (iterator.hasNext()) {
+        var nextNode = iterator.next();
+        var hasNext = iterator.hasNext() || constantPosition == map.size();
+        hasNexts.put(nextNode, hasNext);
+        fallbacks.put(nextNode, fallback || componentNode != null || (hasNext && !candidate));
+      }
+      for(var nextNode: constants.values()) {
+        fallbacks.put(nextNode, fallback || componentNode != null || constantPosition < map.size());
+      }
+      if (componentNode != null) {
+        fallbacks.put(componentNode, fallback);
+      }
+      if (total || !candidate) {
+        return new Decision(total, fallbacks);
+      }
+      var covered = isCovered(n -> unconditionals.get(n).get(fallbacks.get(n)));
+      var conditionals = map.values().stream()
+          .filter(n -> !covered || !unconditionals.get(n).get(fallbacks.get(n)))
+          .toList();
+      for(var nextNode: conditionals) {
+        fallbacks.put(nextNode, fallback || componentNode != null || hasNexts.get(nextNode));
+      }
+      return new Decision(covered, fallbacks);
+    }
+
+    // applies the decisions top-down, with a fallback nothing can be inferred
+    private void inferTotality(boolean fallback, IdentityHashMap<Node, Unconditional> unconditionals) {
+      if (fallback) {
+        return;
+      }
+      var decision = decide(false, unconditionals);
+      total = decision.total;
+      decision.fallbacks.forEach((node, nodeFallback) -> node.inferTotality(nodeFallback, unconditionals));
+    }
+
+    // a switch on a sealed type whose last transition is an instanceof
+    private boolean canBeTotal() {
+      if (targetClass == null || !targetClass.isSealed() || map.isEmpty() || !constants.isEmpty()) {
+        return false;
+      }
+      var last = map.sequencedKeySet().getLast();
+      return last != targetClass && last != NullWitness.class;  // otherwise there is no instanceof to remove
+    }
+
+    // a transition whose sub-tree can fail does not cover its type, the value falls to the next transition
+    private boolean isCovered(Predicate<Node> unconditional) {
+      var types = map.entrySet().stream()
+          .filter(entry -> entry.getKey() != NullWitness.class && unconditional.test(entry.getValue()))
+          .<Class<?>>map(Map.Entry::getKey)
+          .toList();
+      return covers(targetClass, types);
+    }
+
+    private static boolean covers(Class<?> type, List<Class<?>> types) {
+      for(var coveringType: types) {
+        if (coveringType.isAssignableFrom(type)) {
+          return true;
+        }
+      }
+      if (!type.isSealed() || !(type.isInterface() || Modifier.isAbstract(type.getModifiers()))) {
+        return false;
+      }
+      for(var subtype: type.getPermittedSubclasses()) {
+        if (!covers(subtype, types)) {
+          return false;
+        }
+      }
+      return true;
+    }
+
+    // Removes the transitions that can never be taken because a preceding transition on a supertype always matches,
+    // and replaces a test on a supertype of the type of the node by a transition on the type of the node.
+    // Returns the indexes of the cases that are not reachable anymore.
+    public List<Integer> prune() {
+      var unreachables = new ArrayList<Integer>();
+      prune(unreachables);
+      unreachables.sort(null);
+      return unreachables;
+    }
+
+    private void prune(List<Integer> unreachables) {
+      map.values().forEach(n -> n.prune(unreachables));
+      constants.values().forEach(n -> n.prune(unreachables));
+      if (componentNode != null) {
+        componentNode.prune(unreachables);
+      }
+
+      // a type pattern on a supertype of the type of the node is unconditional
+      var supertype = map.keySet().stream().filter(this::isSupertype).findFirst().orElse(null);
+      if (supertype != null) {
+        var types = new ArrayList<>(map.keySet());
+        var typeNode = map.get(targetClass);
+        Class<?> key = null;
+        if (typeNode == null) {
+          key = targetClass;
+        } else if (!map.containsKey(NullWitness.class) && typeNode.isUnconditional()
+            && types.indexOf(targetClass) < types.indexOf(supertype)) {
+          key = NullWitness.class;  // only null can reach the supertype
+        }
+        if (key != null) {
+          var entries = new ArrayList<>(map.entrySet());
+          map.clear();
+          for(var entry: entries) {
+            map.put(entry.getKey() == supertype? key: entry.getKey(), entry.getValue());
+          }
+        }
+      }
+
+      var dominators = new ArrayList<Class<?>>();  // types of the preceding transitions that always match
+      var size = map.size();
+      var removedBeforeConstants = 0;
+      var position = 0;
+      var iterator = map.entrySet().iterator();
+      while (iterator.hasNext()) {
+        if (position == constantPosition) {
+          pruneConstants(dominators, unreachables);
+        }
+        var entry = iterator.next();
+        var type = entry.getKey();
+        var nextNode = entry.getValue();
+        var receivesNull = type == NullWitness.class || (type == targetClass && !iterator.hasNext());
+        if (!receivesNull && dominators.stream().anyMatch(dominator -> dominator.isAssignableFrom(type) || dominator.isAssignableFrom(targetClass))) {
+          iterator.remove();
+          nextNode.collectIndexes(unreachables);
+          if (position < constantPosition) {
+            removedBeforeConstants++;
+          }
+        } else if (type != NullWitness.class && nextNode.isUnconditional()) {
+          dominators.add(type);
+        }
+        position++;
+      }
+      if (constantPosition == size) {
+        pruneConstants(dominators, unreachables);
+      }
+      if (constantPosition != UNINITIALIZED) {
+        constantPosition -= removedBeforeConstants;
+      }
+
+      if (componentNode != null && isUnconditionalWithoutComponent()) {
+        componentNode.collectIndexes(unreachables);
+        componentNode = null;
+      }
+    }
+
+    private boolean isSupertype(Class<?> type) {
+      return type != targetClass && type != NullWitness.class && targetClass != null && type.isAssignableFrom(targetClass);
+    }
+
+    private void pruneConstants(List<Class<?>> dominators, List<Integer> unreachables) {
+      if (dominators.stream().noneMatch(dominator -> dominator.isAssignableFrom(targetClass))) {
+        return;
+      }
+      constants.values().forEach(n -> n.collectIndexes(unreachables));
+      constants.clear();
+      constantPosition = UNINITIALIZED;
+    }
+
+    private void collectIndexes(List<Integer> indexes) {
+      if (index != UNINITIALIZED) {
+        indexes.add(index);
+      }
+      map.values().forEach(n -> n.collectIndexes(indexes));
+      constants.values().forEach(n -> n.collectIndexes(indexes));
+      if (componentNode != null) {
+        componentNode.collectIndexes(indexes);
+      }
+    }
+
+    // true if any value reaching this node is matched, the remainders being errors
+    boolean isUnconditional() {
+      return isUnconditional(total, Node::isUnconditional);
+    }
+
+    // unconditional tells if a sub-tree is unconditional
+    private boolean isUnconditional(boolean total, Predicate<Node> unconditional) {
+      return index != UNINITIALIZED
+          || (componentNode != null && unconditional.test(componentNode))
+          || isUnconditionalWithoutComponent(total, unconditional);
+    }
+
+    private boolean isUnconditionalWithoutComponent() {
+      return isUnconditionalWithoutComponent(total, Node::isUnconditional);
+    }
+
+    private boolean isUnconditionalWithoutComponent(boolean total, Predicate<Node> unconditional) {
+      if (map.isEmpty() || constantPosition == map.size()) {
+        return false;
+      }
+      if (total) {
+        return map.values().stream().allMatch(unconditional);
+      }
+      Map.Entry<Class<?>, Node> last = null;
+      for(var entry: map.entrySet()) {
+        last = entry;
+      }
+      return (last.getKey() == targetClass || last.getKey() == NullWitness.class) && unconditional.test(last.getValue());
+    }
+
+    // the types of the values switched upon, several types if the root is a tuple
+    public List<Class<?>> selectorTypes() {
+      return targetClass == Tuple.class? selectorTypes: List.of(targetClass);
+    }
+
     public Node find(Object... transitions) {
       var node = this;
       for(var transition: transitions) {
         node = switch (transition) {
+          case Integer parameter -> {
+            var child = node.componentNode;
+            if (child == null || child.parameter != parameter) {
+              throw new IllegalArgumentException("no value " + parameter);
+            }
+            yield child;
+          }
           case String s -> {
             var child = node.componentNode;
-            if (child == null) {
+            if (child == null || child.component == null) {
               throw new IllegalArgumentException("null child for " + s);
             }
             if (!child.component.getName().equals(s)) {
@@ -161,125 +545,41 @@ public final class PatternTrees {
       return node;
     }
 
-    private static String simpleName(Class<?> clazz) {
-      if (clazz == NullWitness.class) {
-        return "null";
+    // the component, the value of the tuple or the selector the node tests
+    private String describe() {
+      if (component != null) {
+        return "the component " + component.getDeclaringRecord().getName() + "." + component.getName();
       }
-      var name = clazz.getName();
-      var index = name.lastIndexOf('.');
-      var index2 = name.lastIndexOf('$');
-      return name.substring(Math.max(index, index2) + 1);
-    }
-
-    public String toCode() {
-      var builder = new StringBuilder();
-      toCode(builder, 0, 0, new Scope());
-      return builder.toString();
-    }
-
-    private static String r(int varnum) {
-      return "r" + varnum;
-    }
-
-    private static class Scope {
-      private final HashMap<Node, Integer> map = new HashMap<>();
-
-      public void set(Node node, int varnum) {
-        map.put(node, varnum);
+      if (parameter != UNINITIALIZED) {
+        return "the value " + parameter;
       }
+      return "the selector";
+    }
 
-      public int get(Node node) {
-        var varnum = map.get(node);
-        if (varnum == null) {
-          throw new IllegalStateException("no varnum for node " + node);
-        }
-        return varnum;
+    private static Class<?> constantType(Object constant) {
+      if (constant instanceof Enum<?> enumConstant) {
+        return enumConstant.getDeclaringClass();
       }
+      return constant.getClass();
     }
 
-    private void toCode(StringBuilder builder, int depth, int varnum, Scope scope) {
-      if (index != UNINITIALIZED) {
-        scope.set(this, varnum);
-        var bindings = bindingNodes.stream().map(node -> r(scope.get(node))).collect(joining(", "));
-        builder.append("""
-          return call %d(%s);
-          """.formatted(index, bindings).indent(depth));
-        return;
+    static Class<?> wrap(Class<?> type) {
+      if (type == int.class) {
+        return Integer.class;
       }
-
-      if (componentSource != null) {
-        var input = scope.get(componentSource);
-        builder.append("""
-            %s %s = %s.%s();
-            """.formatted(simpleName(component.getType()), r(varnum + 1), r(input), component.getName()).indent(depth));
-        varnum++;
+      if (type == long.class) {
+        return Long.class;
       }
-
-      var iterator = map.entrySet().iterator();
-      while (iterator.hasNext()) {
-        var entry = iterator.next();
-        var type = entry.getKey();
-        var nextNode = entry.getValue();
-
-        var typename = simpleName(type);
-        if (!iterator.hasNext()) { // last node
-          if (type == targetClass || type == NullWitness.class) {
-            // do nothing
-            scope.set(this, varnum);
-            nextNode.toCode(builder, depth, varnum, scope);
-            continue;
-          }
-          if (total) {    // sealed and total
-            if (type.isRecord() && type.getRecordComponents().length != 0) {
-              builder.append("""
-                    // implicit null check of %s
-                    """.formatted(r(varnum)).indent(depth));
-            } else {
-              builder.append("""
-                    requireNonNull(%s);  // null is a remainder
-                    """.formatted(r(varnum)).indent(depth));
-            }
-            builder.append("""
-                %s %s = (%s) %s;    // catch(CCE) -> ICCE
-                """.formatted(typename, r(varnum + 1), typename, r(varnum)).indent(depth));
-            scope.set(this, varnum + 1);
-            nextNode.toCode(builder, depth, varnum + 1, scope);
-            continue;
-          }
-        }
-        if (type == NullWitness.class) {
-          var targetClassName = simpleName(nextNode.targetClass);
-          builder.append("""
-                if %s == null {
-                  %s %s = (%s) %s;
-                """.formatted(r(varnum), targetClassName, r(varnum + 1), targetClassName, r(varnum)).indent(depth));
-          scope.set(this, varnum + 1);
-          nextNode.toCode(builder, depth + 2, varnum + 1, scope);
-          builder.append("}\n".indent(depth));
-          continue;
-        }
-        if (type == targetClass) {
-          builder.append("""
-                if %s != null {
-                """.formatted(r(varnum)));
-          scope.set(this, varnum);
-          nextNode.toCode(builder, depth + 2, varnum, scope);
-          builder.append("}\n".indent(depth));
-          continue;
-        }
-        builder.append("""
-            if %s instanceof %s {
-              %s %s = (%s) %s;
-            """.formatted(r(varnum), typename, typename, r(varnum + 1), typename, r(varnum)).indent(depth));
-        scope.set(this, varnum + 1);
-        nextNode.toCode(builder, depth + 2, varnum + 1, scope);
-        builder.append("}\n".indent(depth));
+      if (type == char.class) {
+        return Character.class;
       }
+      return type;
+    }
 
-      if (componentNode != null) {
-        scope.set(this, varnum);
-        componentNode.toCode(builder, depth, varnum, scope);
-      }
+    public String toCode() {
+      var builder = new StringBuilder();
+      CodeGenerator.generate(this, new CodeGenerator.PseudoCodeEmitter(builder));
+      return builder.toString();
     }
   }
 }
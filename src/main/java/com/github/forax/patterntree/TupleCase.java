@@ -0,0 +1,13 @@
+package com.github.forax.patterntree;
+
+import java.util.List;
+
+// a case of a switch on a tuple of values, one pattern per value
+public record TupleCase(List<Pattern> patterns, int index) {
+    public TupleCase {
+      patterns = List.copyOf(patterns);
+      if (patterns.isEmpty()) {
+        throw new IllegalArgumentException("no pattern");
+      }
+    }
+}
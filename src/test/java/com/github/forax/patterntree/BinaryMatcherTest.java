@@ -0,0 +1,292 @@
+package com.github.forax.patterntree;
+
+import com.github.forax.patterntree.Pattern.ConstantPattern;
+import com.github.forax.patterntree.Pattern.RecordPattern;
+import com.github.forax.patterntree.Pattern.TypePattern;
+import org.junit.jupiter.api.Test;
+
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.nio.ByteBuffer;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class BinaryMatcherTest {
+  enum Color { RED, GREEN, BLUE }
+  record Point(int x, int y) {}
+  sealed interface Shape {}
+  record Circle(Point center, long radius, Color color) implements Shape {}
+  record Label(Point position, String text, boolean bold) implements Shape {}
+  record Drawing(Shape first, Shape second) {}
+  record Unknown(int x) {}
+  record Opaque(Object value) {}
+
+  private static final BinaryLayout LAYOUT = BinaryLayout.of(List.of(Point.class, Circle.class, Label.class, Drawing.class));
+
+  private static PatternTrees.Node createTree() {
+    // Drawing drawing = ...
+    // switch(drawing) {
+    //   case Drawing(Circle(Point(int x, int y), long r, Color c), Shape s) -> 1
+    //   case Drawing(Label(Point p, String text, boolean b), Label l) -> 2
+    //   case Drawing(Label l, Shape s) -> 3
+    // }
+    var root = PatternTrees.createTree(Drawing.class, List.of(
+            new Case(new RecordPattern(Drawing.class,
+                new RecordPattern(Circle.class, new RecordPattern(Point.class, new TypePattern(int.class, "x"), new TypePattern(int.class, "y")),
+                    new TypePattern(long.class, "r"), new TypePattern(Color.class, "c")),
+                new TypePattern(Shape.class, "s")), 1),
+            new Case(new RecordPattern(Drawing.class,
+                new RecordPattern(Label.class, new TypePattern(Point.class, "p"), new TypePattern(String.class, "text"), new TypePattern(boolean.class, "b")),
+                new TypePattern(Label.class, "l")), 2),
+            new Case(new RecordPattern(Drawing.class, new TypePattern(Label.class, "l"), new TypePattern(Shape.class, "s")), 3)
+        )
+    );
+    root.inferTotality();
+    return root;
+  }
+
+  private static int write(ByteBuffer buffer, Object value) {
+    return LAYOUT.write(buffer, value);
+  }
+
+  @Test
+  public void layout() {
+    assertEquals(0, LAYOUT.tag(Point.class));
+    assertEquals(2, LAYOUT.tag(Label.class));
+    assertEquals(4, LAYOUT.offset(Point.class, "x"));
+    assertEquals(8, LAYOUT.offset(Point.class, "y"));
+    assertEquals(12, LAYOUT.size(Point.class));
+    assertEquals(8, LAYOUT.offset(Circle.class, "radius"));
+    assertEquals(20, LAYOUT.size(Circle.class));
+    assertEquals(13, LAYOUT.size(Label.class));
+    assertArrayEquals(new int[] { 1, 2 }, LAYOUT.tags(Shape.class));
+  }
+
+  @Test
+  public void layoutErrors() {
+    assertAll(
+        () -> assertThrows(IllegalArgumentException.class, () -> LAYOUT.tag(Unknown.class)),
+        () -> assertThrows(IllegalArgumentException.class, () -> LAYOUT.offset(Point.class, "z")),
+        () -> assertThrows(IllegalArgumentException.class, () -> BinaryLayout.of(List.of(Point.class, Point.class))),
+        () -> assertThrows(IllegalArgumentException.class, () -> BinaryLayout.of(List.of(Opaque.class)))
+    );
+  }
+
+  @Test
+  public void writeAndRead() {
+    var buffer = ByteBuffer.allocate(1024);
+    var drawing = new Drawing(new Circle(new Point(1, 2), 3L, Color.GREEN), new Label(null, "héllo 😀", true));
+    var offset = write(buffer, drawing);
+
+    assertEquals(drawing, LAYOUT.read(buffer, offset, Drawing.class));
+    assertNull(LAYOUT.read(buffer, -1, Drawing.class));
+    assertEquals(-1, write(buffer, null));
+  }
+
+  @Test
+  public void stringHashCodeAndEquals() {
+    var buffer = ByteBuffer.allocate(1024);
+    for(var text: List.of("", "Aa", "BB", "héllo", "😀!", "日本")) {
+      var offset = write(buffer, text);
+      assertEquals(text.hashCode(), BinaryLayout.stringHashCode(buffer, offset));
+      assertTrue(BinaryLayout.stringEquals(buffer, offset, text));
+      assertFalse(BinaryLayout.stringEquals(buffer, offset, text + "x"));
+    }
+  }
+
+  @Test
+  public void toJava() {
+    var source = BinaryMatcher.toJava(createTree(), LAYOUT, "", "DrawingMatcher");
+
+    assertTrue(source.contains("static int match(java.nio.ByteBuffer buffer, int r0, Object[] bindings) {"));
+    assertTrue(source.contains("int r1 = buffer.getInt(r0 + 4);"));
+    assertTrue(source.contains("long r6 = buffer.getLong(r2 + 8);"));
+    assertTrue(source.contains("if (r1 != -1 && buffer.getInt(r1) == 1) {"));
+    assertTrue(source.contains("boolean r5 = buffer.get(r2 + 12) != 0;"));
+    assertTrue(source.contains("if (r3 == -1) {\n        throw new NullPointerException(\"null is a remainder\");"));
+    assertFalse(source.contains("new com.github.forax"));
+  }
+
+  @Test
+  public void compile() throws Throwable {
+    var matcher = BinaryMatcher.compile(createTree(), LAYOUT, MethodHandles.lookup());
+    var buffer = ByteBuffer.allocateDirect(1024);
+    var bindings5 = new Object[5];
+
+    assertEquals(MethodType.methodType(int.class, ByteBuffer.class, int.class, Object[].class), matcher.type());
+
+    var offset = write(buffer, new Drawing(new Circle(new Point(1, 2), 3L, Color.BLUE), null));
+    assertEquals(1, (int) matcher.invokeExact(buffer, offset, bindings5));
+    assertArrayEquals(new Object[] { 1, 2, 3L, Color.BLUE, null }, bindings5);
+
+    offset = write(buffer, new Drawing(new Label(new Point(4, 5), "text", true), new Label(null, null, false)));
+    assertEquals(2, (int) matcher.invokeExact(buffer, offset, bindings5));
+    assertArrayEquals(new Object[] { new Point(4, 5), "text", true, new Label(null, null, false), null }, bindings5);
+
+    offset = write(buffer, new Drawing(new Label(null, "text", false), new Circle(null, 0L, null)));
+    assertEquals(3, (int) matcher.invokeExact(buffer, offset, bindings5));
+    assertEquals(new Label(null, "text", false), bindings5[0]);
+    assertEquals(new Circle(null, 0L, null), bindings5[1]);
+  }
+
+  @Test
+  public void compileRemainders() throws Throwable {
+    var matcher = BinaryMatcher.compile(createTree(), LAYOUT, MethodHandles.lookup());
+    var buffer = ByteBuffer.allocate(1024);
+
+    var offset = write(buffer, new Drawing(new Circle(null, 1L, Color.RED), null));
+    assertThrows(NullPointerException.class, () -> { int __ = (int) matcher.invokeExact(buffer, offset, new Object[5]); });
+  }
+
+  @Test
+  public void compileNullComponentRemainder() throws Throwable {
+    // Drawing drawing = ...
+    // switch(drawing) {
+    //   case Drawing(Circle c, Shape s) -> 1
+    //   case Drawing(Label(Point p, String text, boolean b), Shape s) -> 2
+    // }
+    var root = PatternTrees.createTree(Drawing.class, List.of(
+            new Case(new RecordPattern(Drawing.class, new TypePattern(Circle.class, "c"), new TypePattern(Shape.class, "s")), 1),
+            new Case(new RecordPattern(Drawing.class,
+                new RecordPattern(Label.class, new TypePattern(Point.class, "p"), new TypePattern(String.class, "text"), new TypePattern(boolean.class, "b")),
+                new TypePattern(Shape.class, "s")), 2)
+        )
+    );
+    root.inferTotality();
+    var matcher = BinaryMatcher.compile(root, LAYOUT, MethodHandles.lookup());
+    var javaMatcher = JavaSource.compile(root, MethodHandles.lookup());
+    var buffer = ByteBuffer.allocate(1024);
+
+    assertEquals(2, (int) matcher.invokeExact(buffer, write(buffer, new Drawing(new Label(null, "text", true), null)), new Object[4]));
+    var offset = write(buffer, new Drawing(null, null));
+    assertThrows(NullPointerException.class, () -> { int __ = (int) javaMatcher.invokeExact(new Drawing(null, null), new Object[4]); });
+    assertThrows(NullPointerException.class, () -> { int __ = (int) matcher.invokeExact(buffer, offset, new Object[4]); });
+  }
+
+  @Test
+  public void compileUnknownRecord() throws Throwable {
+    // Shape shape = ...
+    // switch(shape) {
+    //   case Circle c -> 1
+    //   case Label l -> 2
+    // }
+    var root = PatternTrees.createTree(Shape.class, List.of(
+            new Case(new TypePattern(Circle.class, "c"), 1),
+            new Case(new TypePattern(Label.class, "l"), 2)
+        )
+    );
+    root.inferTotality();
+    var matcher = BinaryMatcher.compile(root, LAYOUT, MethodHandles.lookup());
+    var buffer = ByteBuffer.allocate(1024);
+
+    assertEquals(2, (int) matcher.invokeExact(buffer, write(buffer, new Label(null, null, true)), new Object[1]));
+    var offset = write(buffer, new Point(1, 2));  // not a Shape
+    assertThrows(IncompatibleClassChangeError.class, () -> { int __ = (int) matcher.invokeExact(buffer, offset, new Object[1]); });
+    assertThrows(NullPointerException.class, () -> { int __ = (int) matcher.invokeExact(buffer, -1, new Object[1]); });
+    assertThrows(IllegalArgumentException.class, () -> LAYOUT.read(buffer, offset, Shape.class));
+  }
+
+  @Test
+  public void compileConstantPatterns() throws Throwable {
+    // Circle circle = ...
+    // switch(circle) {
+    //   case Circle(Point p, 1L, RED) -> 1
+    //   case Circle(Point p, long r, BLUE) -> 2
+    //   case Circle c -> 3
+    // }
+    var root = PatternTrees.createTree(Circle.class, List.of(
+            new Case(new RecordPattern(Circle.class, new TypePattern(Point.class, "p"), new ConstantPattern(1L), new ConstantPattern(Color.RED)), 1),
+            new Case(new RecordPattern(Circle.class, new TypePattern(Point.class, "p"), new TypePattern(long.class, "r"), new ConstantPattern(Color.BLUE)), 2),
+            new Case(new TypePattern(Circle.class, "c"), 3)
+        )
+    );
+    var matcher = BinaryMatcher.compile(root, LAYOUT, MethodHandles.lookup());
+    var buffer = ByteBuffer.allocate(1024);
+    var bindings = new Object[2];
+
+    assertEquals(1, (int) matcher.invokeExact(buffer, write(buffer, new Circle(new Point(1, 2), 1L, Color.RED)), bindings));
+    assertEquals(new Point(1, 2), bindings[0]);
+    assertEquals(2, (int) matcher.invokeExact(buffer, write(buffer, new Circle(null, 7L, Color.BLUE)), bindings));
+    assertArrayEquals(new Object[] { null, 7L }, bindings);
+    assertEquals(3, (int) matcher.invokeExact(buffer, write(buffer, new Circle(null, 2L, Color.RED)), bindings));
+    assertEquals(3, (int) matcher.invokeExact(buffer, write(buffer, new Circle(null, 1L, null)), bindings));
+    assertEquals(new Circle(null, 1L, null), bindings[0]);
+  }
+
+  @Test
+  public void compileStringConstants() throws Throwable {
+    // Label label = ...
+    // switch(label) {
+    //   case Label(Point p, "Aa", boolean b) -> 1
+    //   case Label(Point p, "BB", boolean b) -> 2
+    //   case Label l -> 3
+    // }
+    var root = PatternTrees.createTree(Label.class, List.of(
+            new Case(new RecordPattern(Label.class, new TypePattern(Point.class, "_"), new ConstantPattern("Aa"), new TypePattern(boolean.class, "b")), 1),
+            new Case(new RecordPattern(Label.class, new TypePattern(Point.class, "_"), new ConstantPattern("BB"), new TypePattern(boolean.class, "b")), 2),
+            new Case(new TypePattern(Label.class, "l"), 3)
+        )
+    );
+    var matcher = BinaryMatcher.compile(root, LAYOUT, MethodHandles.lookup());
+    var buffer = ByteBuffer.allocate(1024);
+    var bindings = new Object[1];
+
+    assertEquals(1, (int) matcher.invokeExact(buffer, write(buffer, new Label(null, "Aa", true)), bindings));
+    assertEquals(true, bindings[0]);
+    assertEquals(2, (int) matcher.invokeExact(buffer, write(buffer, new Label(null, "BB", false)), bindings));
+    assertEquals(false, bindings[0]);
+    assertEquals(3, (int) matcher.invokeExact(buffer, write(buffer, new Label(null, "CC", false)), bindings));
+    assertEquals(3, (int) matcher.invokeExact(buffer, write(buffer, new Label(null, null, false)), bindings));
+  }
+
+  @Test
+  public void compileSupertypeBindings() throws Throwable {
+    // Shape shape = ...
+    // switch(shape) {
+    //   case Label(Point p, CharSequence text, boolean b) -> 1
+    //   case Circle(Point p, long r, Comparable color) -> 2
+    // }
+    var root = PatternTrees.createTree(Shape.class, List.of(
+            new Case(new RecordPattern(Label.class, new TypePattern(Point.class, "_"), new TypePattern(CharSequence.class, "text"), new TypePattern(boolean.class, "_")), 1),
+            new Case(new RecordPattern(Circle.class, new TypePattern(Point.class, "_"), new TypePattern(long.class, "_"), new TypePattern(Comparable.class, "color")), 2)
+        )
+    );
+    root.inferTotality();
+    var matcher = BinaryMatcher.compile(root, LAYOUT, MethodHandles.lookup());
+    var buffer = ByteBuffer.allocate(1024);
+    var bindings = new Object[1];
+
+    assertEquals(1, (int) matcher.invokeExact(buffer, write(buffer, new Label(null, "text", true)), bindings));
+    assertEquals("text", bindings[0]);
+    assertEquals(2, (int) matcher.invokeExact(buffer, write(buffer, new Circle(null, 1L, Color.GREEN)), bindings));
+    assertEquals(Color.GREEN, bindings[0]);
+    assertEquals(2, (int) matcher.invokeExact(buffer, write(buffer, new Circle(null, 1L, null)), bindings));
+    assertNull(bindings[0]);
+  }
+
+  @Test
+  public void compileTuple() throws Throwable {
+    // switch(shape1, shape2) {
+    //   case (Circle c, Label(Point p, String text, boolean b)) -> 1
+    //   case (Shape s1, Shape s2) -> 2
+    // }
+    var root = PatternTrees.createTree(List.of(Shape.class, Shape.class), List.of(
+            new TupleCase(List.of(new TypePattern(Circle.class, "c"),
+                new RecordPattern(Label.class, new TypePattern(Point.class, "_"), new TypePattern(String.class, "text"), new TypePattern(boolean.class, "_"))), 1),
+            new TupleCase(List.of(new TypePattern(Shape.class, "s1"), new TypePattern(Shape.class, "s2")), 2)
+        )
+    );
+    var matcher = BinaryMatcher.compile(root, LAYOUT, MethodHandles.lookup());
+    var buffer = ByteBuffer.allocate(1024);
+    var bindings = new Object[2];
+
+    assertEquals(MethodType.methodType(int.class, ByteBuffer.class, int.class, int.class, Object[].class), matcher.type());
+    var circle = write(buffer, new Circle(null, 1L, Color.RED));
+    var label = write(buffer, new Label(null, "text", true));
+    assertEquals(1, (int) matcher.invokeExact(buffer, circle, label, bindings));
+    assertArrayEquals(new Object[] { new Circle(null, 1L, Color.RED), "text" }, bindings);
+    assertEquals(2, (int) matcher.invokeExact(buffer, label, circle, bindings));
+    assertArrayEquals(new Object[] { new Label(null, "text", true), new Circle(null, 1L, Color.RED) }, bindings);
+  }
+}
@@ -0,0 +1,95 @@
+package com.github.forax.patterntree;
+
+import com.github.forax.patterntree.Pattern.RecordPattern;
+import com.github.forax.patterntree.Pattern.TypePattern;
+import org.junit.jupiter.api.Test;
+import org.objectweb.asm.ClassReader;
+import org.objectweb.asm.ClassWriter;
+
+import java.lang.invoke.MethodHandles;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class DiagnosticsTest {
+  record Foo(I i, I i2) {}
+  sealed interface I {}
+  record A(int x) implements I {}
+  record B(String s) implements I {}
+
+  private static PatternTrees.Node createTree() {
+    // Foo foo = ...
+    // switch(foo) {
+    //   case Foo(A a, A(int x)) -> 1
+    //   case Foo(A a, A a2) -> 2
+    //   case Foo(A a, B(String s)) -> 3
+    //   case Foo(B b, I i) -> 4
+    // }
+    var root = PatternTrees.createTree(Foo.class, List.of(
+            new Case(new RecordPattern(Foo.class, new TypePattern(A.class, "a"), new RecordPattern(A.class, new TypePattern(int.class, "x"))), 1),
+            new Case(new RecordPattern(Foo.class, new TypePattern(A.class, "a"), new TypePattern(A.class, "a2")), 2),
+            new Case(new RecordPattern(Foo.class, new TypePattern(A.class, "a"), new RecordPattern(B.class, new TypePattern(String.class, "s"))), 3),
+            new Case(new RecordPattern(Foo.class, new TypePattern(B.class, "b"), new TypePattern(I.class, "i")), 4)
+        )
+    );
+    root.inferTotality();
+    return root;
+  }
+
+  @Test
+  public void subtreeSizes() {
+    var root = createTree();
+    var diagnostics = Diagnostics.of(root, MethodHandles.lookup());
+
+    var sizes = diagnostics.subtreeSizes();
+    assertTrue(diagnostics.methodSize() > 0);
+    assertEquals(diagnostics.methodSize(), sizes.get(root));  // all cases are covered, no MatchException
+    var nodeA = root.find(Foo.class, "i", A.class);
+    var nodeB = root.find(Foo.class, "i", B.class);
+    assertTrue(sizes.get(nodeA) > sizes.get(nodeB));
+    assertTrue(sizes.get(nodeA) + sizes.get(nodeB) < sizes.get(root));
+  }
+
+  @Test
+  public void typeTests() {
+    var diagnostics = Diagnostics.of(createTree(), MethodHandles.lookup());
+
+    assertEquals(Map.of(1, 2, 2, 2, 3, 2, 4, 1), diagnostics.typeTests());
+    assertEquals(2, diagnostics.maxTypeTests());
+    assertEquals(1.75, diagnostics.averageTypeTests());
+  }
+
+  @Test
+  public void limits() {
+    var diagnostics = Diagnostics.of(createTree(), MethodHandles.lookup());
+    var limits = diagnostics.limits();
+
+    assertTrue(limits.maxInlineSize() > 0 && limits.freqInlineSize() > 0 && limits.hugeMethodLimit() > 0);
+    assertEquals(diagnostics.methodSize() <= limits.freqInlineSize(), diagnostics.isInlinable());
+    assertTrue(diagnostics.isCompilable());
+    assertTrue(diagnostics.toString().startsWith("method match: " + diagnostics.methodSize() + " bytes"));
+  }
+
+  @Test
+  public void bytecode() {
+    var diagnostics = Diagnostics.of(createTree(), MethodHandles.lookup());
+
+    assertTrue(diagnostics.bytecode().contains("static match(Lcom/github/forax/patterntree/DiagnosticsTest$Foo;[Ljava/lang/Object;)I"));
+    assertTrue(diagnostics.bytecode().contains("INSTANCEOF com/github/forax/patterntree/DiagnosticsTest$A"));
+  }
+
+  @Test
+  public void methodSizeWithoutDebugInfo() {
+    var bytecode = JavaSource.toBytecode(createTree(), DiagnosticsTest.class.getPackageName(), new HashMap<>());
+    var writer = new ClassWriter(0);
+    new ClassReader(bytecode).accept(writer, ClassReader.SKIP_DEBUG);  // like a class compiled without -g
+    var lineSizes = new HashMap<Integer, Integer>();
+    var methodSize = Diagnostics.lineSizes(bytecode, lineSizes);
+
+    assertTrue(methodSize > 0);
+    assertEquals(methodSize, lineSizes.values().stream().mapToInt(size -> size).sum());
+    assertEquals(methodSize, Diagnostics.lineSizes(writer.toByteArray(), new HashMap<>()));
+  }
+}
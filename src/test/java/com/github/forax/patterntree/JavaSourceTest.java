@@ -0,0 +1,314 @@
+package com.github.forax.patterntree;
+
+import com.github.forax.patterntree.Pattern.ConstantPattern;
+import com.github.forax.patterntree.Pattern.RecordPattern;
+import com.github.forax.patterntree.Pattern.TypePattern;
+import org.junit.jupiter.api.Test;
+
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.util.HashMap;
+import java.util.List;
+import java.util.stream.Stream;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class JavaSourceTest {
+  record Foo(I i, I i2) {}
+  sealed interface I {}
+  record A(int x) implements I {}
+  record B(String s) implements I {}
+
+  enum Color { RED, GREEN, BLUE }
+  record Command(Color color, String name) {}
+
+  private static PatternTrees.Node createTree() {
+    // Foo foo = ...
+    // switch(foo) {
+    //   case Foo(A a, A(int x)) -> 1
+    //   case Foo(A a, A a2) -> 2
+    //   case Foo(A a, B(String s)) -> 3
+    //   case Foo(B b, I i) -> 4
+    // }
+    var root = PatternTrees.createTree(Foo.class, List.of(
+            new Case(new RecordPattern(Foo.class, new TypePattern(A.class, "a"), new RecordPattern(A.class, new TypePattern(int.class, "x"))), 1),
+            new Case(new RecordPattern(Foo.class, new TypePattern(A.class, "a"), new TypePattern(A.class, "a2")), 2),
+            new Case(new RecordPattern(Foo.class, new TypePattern(A.class, "a"), new RecordPattern(B.class, new TypePattern(String.class, "s"))), 3),
+            new Case(new RecordPattern(Foo.class, new TypePattern(B.class, "b"), new TypePattern(I.class, "i")), 4)
+        )
+    );
+    root.inferTotality();
+    return root;
+  }
+
+  @Test
+  public void toJava() {
+    assertEquals("""
+        package com.github.forax.patterntree;
+
+        final class FooMatcher {
+          private FooMatcher() {}
+
+          static int match(com.github.forax.patterntree.JavaSourceTest.Foo r0, Object[] bindings) {
+            com.github.forax.patterntree.JavaSourceTest.I r1 = r0.i();
+            if (r1 instanceof com.github.forax.patterntree.JavaSourceTest.A) {
+              com.github.forax.patterntree.JavaSourceTest.A r2 = (com.github.forax.patterntree.JavaSourceTest.A) r1;
+              com.github.forax.patterntree.JavaSourceTest.I r3 = r0.i2();
+              if (r3 instanceof com.github.forax.patterntree.JavaSourceTest.A) {
+                com.github.forax.patterntree.JavaSourceTest.A r4 = (com.github.forax.patterntree.JavaSourceTest.A) r3;
+                int r5 = r4.x();
+                bindings[0] = r2;
+                bindings[1] = r5;
+                return 1;
+              }
+              if (r3 == null) {
+                com.github.forax.patterntree.JavaSourceTest.A r4 = (com.github.forax.patterntree.JavaSourceTest.A) r3;
+                bindings[0] = r2;
+                bindings[1] = r4;
+                return 2;
+              }
+              com.github.forax.patterntree.JavaSourceTest.B r4;
+              try {
+                r4 = (com.github.forax.patterntree.JavaSourceTest.B) r3;
+              } catch (ClassCastException e) {  // a subclass unknown at compile time is a remainder
+                throw (IncompatibleClassChangeError) new IncompatibleClassChangeError(e.getMessage()).initCause(e);
+              }
+              java.lang.String r5 = r4.s();
+              bindings[0] = r2;
+              bindings[1] = r5;
+              return 3;
+            }
+            java.util.Objects.requireNonNull(r1, "null is a remainder");
+            com.github.forax.patterntree.JavaSourceTest.B r2;
+            try {
+              r2 = (com.github.forax.patterntree.JavaSourceTest.B) r1;
+            } catch (ClassCastException e) {  // a subclass unknown at compile time is a remainder
+              throw (IncompatibleClassChangeError) new IncompatibleClassChangeError(e.getMessage()).initCause(e);
+            }
+            com.github.forax.patterntree.JavaSourceTest.I r3 = r0.i2();
+            bindings[0] = r2;
+            bindings[1] = r3;
+            return 4;
+          }
+        }
+        """,
+        JavaSource.toJava(createTree(), "com.github.forax.patterntree", "FooMatcher"));
+  }
+
+  @Test
+  public void toJavaWriter() {
+    var root = createTree();
+    var builder = new StringBuilder();
+    JavaSource.toJava(root, "", "FooMatcher", builder);
+    assertTrue(builder.toString().startsWith("final class FooMatcher {\n"));
+  }
+
+  @Test
+  public void compile() throws Throwable {
+    var matcher = JavaSource.compile(createTree(), MethodHandles.lookup());
+    var bindings = new Object[2];
+
+    assertEquals(1, (int) matcher.invokeExact(new Foo(new A(1), new A(2)), bindings));
+    assertArrayEquals(new Object[] { new A(1), 2 }, bindings);
+    assertEquals(2, (int) matcher.invokeExact(new Foo(new A(1), (I) null), bindings));
+    assertArrayEquals(new Object[] { new A(1), null }, bindings);
+    assertEquals(3, (int) matcher.invokeExact(new Foo(new A(1), new B("s")), bindings));
+    assertArrayEquals(new Object[] { new A(1), "s" }, bindings);
+    assertEquals(4, (int) matcher.invokeExact(new Foo(new B("s"), new A(2)), bindings));
+    assertArrayEquals(new Object[] { new B("s"), new A(2) }, bindings);
+  }
+
+  @Test
+  public void compileNullRemainder() throws Throwable {
+    var matcher = JavaSource.compile(createTree(), MethodHandles.lookup());
+    assertThrows(NullPointerException.class, () -> { int __ = (int) matcher.invokeExact(new Foo(null, null), new Object[2]); });
+    assertThrows(NullPointerException.class, () -> { int __ = (int) matcher.invokeExact(new Foo(new A(1), new A(2)), (Object[]) null); });
+  }
+
+  @Test
+  public void compilePartial() throws Throwable {
+    var matcher = JavaSource.compilePartial(createTree(), MethodHandles.lookup());
+    var bindings = new Object[2];
+
+    assertEquals(1, (int) matcher.invokeExact(new Foo(new A(1), new A(2)), bindings));
+    assertArrayEquals(new Object[] { new A(1), 2 }, bindings);
+    assertEquals(4, (int) matcher.invokeExact(new Foo(new B("s"), new A(2)), bindings));
+    assertEquals(-1, (int) matcher.invokeExact(new Foo(null, null), bindings));
+    assertEquals(-1, (int) matcher.invokeExact((Foo) null, bindings));
+  }
+
+  @Test
+  public void partialSourceThrowsNothing() {
+    var builder = new StringBuilder();
+    JavaSource.toJava(createTree(), "", "Matcher", builder, new HashMap<>(), null, JavaSource.Mode.PARTIAL);
+    var source = builder.toString();
+
+    assertFalse(source.contains("throw"));
+    assertFalse(source.contains("requireNonNull"));
+    assertTrue(source.contains("return -1;"));
+  }
+
+  @Test
+  public void compilePredicate() {
+    var predicate = JavaSource.compilePredicate(createTree(), Foo.class, MethodHandles.lookup());
+
+    assertTrue(predicate.test(new Foo(new A(1), new B("s"))));
+    assertFalse(predicate.test(new Foo(null, new A(2))));
+    assertFalse(predicate.test(null));
+    assertEquals(2, Stream.of(new Foo(new A(1), new A(2)), new Foo(null, null), new Foo(new B("s"), null)).filter(predicate).count());
+  }
+
+  @Test
+  public void predicateSourceHasNoBindings() {
+    var builder = new StringBuilder();
+    JavaSource.toJava(createTree(), "", "Matcher", builder, new HashMap<>(), null, JavaSource.Mode.PREDICATE);
+    var source = builder.toString();
+
+    assertTrue(source.contains("static boolean match(com.github.forax.patterntree.JavaSourceTest.Foo r0) {"));
+    assertFalse(source.contains("bindings"));
+    assertTrue(source.contains("    return false;\n  }\n"));
+    assertTrue(source.contains("final class Matcher implements java.util.function.Predicate<Object> {"));
+  }
+
+  @Test
+  public void compilePredicateOnATupleOfOneValue() {
+    // I i = ...
+    // switch(i) {
+    //   case (A(int x)) -> 1
+    //   case (I i) -> 2
+    // }
+    var root = PatternTrees.createTree(List.of(I.class), List.of(
+            new TupleCase(List.of(new RecordPattern(A.class, new TypePattern(int.class, "x"))), 1),
+            new TupleCase(List.of(new TypePattern(I.class, "i")), 2)
+        )
+    );
+    var predicate = JavaSource.compilePredicate(root, I.class, MethodHandles.lookup());
+
+    assertTrue(predicate.test(new A(1)));
+    assertTrue(predicate.test(new B("s")));
+    assertTrue(predicate.test(null));  // (I i) is unconditional
+  }
+
+  @Test
+  public void compilePartialAndPredicateAgreeOnNull() throws Throwable {
+    // String s = ...
+    // switch(s) {
+    //   case (String s) -> 1
+    // }
+    var root = PatternTrees.createTree(List.of(String.class), List.of(
+            new TupleCase(List.of(new TypePattern(String.class, "s")), 1)
+        )
+    );
+    var partial = JavaSource.compilePartial(root, MethodHandles.lookup());
+    var predicate = JavaSource.compilePredicate(root, String.class, MethodHandles.lookup());
+
+    assertEquals(1, (int) partial.invokeExact((String) null, new Object[1]));
+    assertTrue(predicate.test(null));
+  }
+
+  @Test
+  public void compilePredicateOnAnotherType() {
+    assertThrows(IllegalArgumentException.class, () -> JavaSource.compilePredicate(createTree(), Object.class, MethodHandles.lookup()));
+  }
+
+  private static PatternTrees.Node createUnconditionalTree() {
+    // Object o = ...
+    // switch(o) {
+    //   case String s -> 1
+    //   case Object o2 -> 2
+    // }
+    return PatternTrees.createTree(Object.class, List.of(
+            new Case(new TypePattern(String.class, "s"), 1),
+            new Case(new TypePattern(Object.class, "o2"), 2)
+        )
+    );
+  }
+
+  @Test
+  public void compilePartialNullSelector() throws Throwable {
+    var matcher = JavaSource.compilePartial(createUnconditionalTree(), MethodHandles.lookup());
+    var bindings = new Object[1];
+
+    assertEquals(1, (int) matcher.invokeExact((Object) "s", bindings));
+    assertEquals(2, (int) matcher.invokeExact((Object) 42, bindings));
+    assertEquals(-1, (int) matcher.invokeExact((Object) null, bindings));
+  }
+
+  @Test
+  public void compilePredicateNullSelector() {
+    var predicate = JavaSource.compilePredicate(createUnconditionalTree(), Object.class, MethodHandles.lookup());
+
+    assertTrue(predicate.test("s"));
+    assertTrue(predicate.test(42));
+    assertFalse(predicate.test(null));
+  }
+
+  @Test
+  public void compileConstantPatterns() throws Throwable {
+    // Command command = ...
+    // switch(command) {
+    //   case Command(RED, String name) -> 1
+    //   case Command(BLUE, "Aa") -> 2
+    //   case Command(BLUE, "BB") -> 3
+    //   case Command(BLUE, "a\"\n") -> 4
+    //   case Command c -> 5
+    // }
+    var root = PatternTrees.createTree(Command.class, List.of(
+            new Case(new RecordPattern(Command.class, new ConstantPattern(Color.RED), new TypePattern(String.class, "name")), 1),
+            new Case(new RecordPattern(Command.class, new ConstantPattern(Color.BLUE), new ConstantPattern("Aa")), 2),
+            new Case(new RecordPattern(Command.class, new ConstantPattern(Color.BLUE), new ConstantPattern("BB")), 3),
+            new Case(new RecordPattern(Command.class, new ConstantPattern(Color.BLUE), new ConstantPattern("a\"\n")), 4),
+            new Case(new TypePattern(Command.class, "c"), 5)
+        )
+    );
+    var matcher = JavaSource.compile(root, MethodHandles.lookup());
+    var bindings = new Object[1];
+
+    assertEquals(1, (int) matcher.invokeExact(new Command(Color.RED, "foo"), bindings));
+    assertEquals("foo", bindings[0]);
+    assertEquals(2, (int) matcher.invokeExact(new Command(Color.BLUE, "Aa"), bindings));
+    assertEquals(3, (int) matcher.invokeExact(new Command(Color.BLUE, "BB"), bindings));
+    assertEquals(4, (int) matcher.invokeExact(new Command(Color.BLUE, "a\"\n"), bindings));
+    assertEquals(5, (int) matcher.invokeExact(new Command(Color.BLUE, "CC"), bindings));
+    assertEquals(5, (int) matcher.invokeExact(new Command(Color.GREEN, "Aa"), bindings));
+    assertEquals(5, (int) matcher.invokeExact(new Command(null, null), bindings));
+  }
+
+  @Test
+  public void compileTuple() throws Throwable {
+    // I i1 = ..., i2 = ...
+    // switch(i1, i2) {
+    //   case (A a1, A a2) -> 1
+    //   case (A a, B(String s)) -> 2
+    //   case (B b, I i) -> 3
+    // }
+    var root = PatternTrees.createTree(List.of(I.class, I.class), List.of(
+            new TupleCase(List.of(new TypePattern(A.class, "a1"), new TypePattern(A.class, "a2")), 1),
+            new TupleCase(List.of(new TypePattern(A.class, "a"), new RecordPattern(B.class, new TypePattern(String.class, "s"))), 2),
+            new TupleCase(List.of(new TypePattern(B.class, "b"), new TypePattern(I.class, "i")), 3)
+        )
+    );
+    root.inferTotality();
+    var matcher = JavaSource.compile(root, MethodHandles.lookup());
+    var bindings = new Object[2];
+
+    assertEquals(MethodType.methodType(int.class, I.class, I.class, Object[].class), matcher.type());
+    assertEquals(1, (int) matcher.invokeExact((I) new A(1), (I) new A(2), bindings));
+    assertArrayEquals(new Object[] { new A(1), new A(2) }, bindings);
+    assertEquals(2, (int) matcher.invokeExact((I) new A(1), (I) new B("s"), bindings));
+    assertArrayEquals(new Object[] { new A(1), "s" }, bindings);
+    assertEquals(3, (int) matcher.invokeExact((I) new B("s"), (I) null, bindings));
+    assertArrayEquals(new Object[] { new B("s"), null }, bindings);
+    assertThrows(NullPointerException.class, () -> { int __ = (int) matcher.invokeExact((I) null, (I) new A(2), bindings); });
+  }
+
+  @Test
+  public void compileAnInaccessibleType() {
+    record Local(int x) {}
+    var root = PatternTrees.createTree(Object.class, List.of(
+            new Case(new TypePattern(Local.class, "l"), 1)
+        )
+    );
+    assertThrows(IllegalArgumentException.class, () -> JavaSource.compile(root, MethodHandles.lookup()));
+  }
+}
@@ -0,0 +1,98 @@
+package com.github.forax.patterntree;
+
+import com.github.forax.patterntree.Pattern.RecordPattern;
+import com.github.forax.patterntree.Pattern.TypePattern;
+import org.junit.jupiter.api.Test;
+
+import java.lang.invoke.MethodHandles;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class MatcherCallSiteTest {
+  sealed interface Event {}
+  record Click(int x, int y) implements Event {}
+  record Key(char c) implements Event {}
+
+  private static final List<Case> RULES_V1 = List.of(
+      new Case(new RecordPattern(Click.class, new TypePattern(int.class, "x"), new TypePattern(int.class, "y")), 1),
+      new Case(new TypePattern(Event.class, "e"), 2)
+  );
+  private static final List<Case> RULES_V2 = List.of(
+      new Case(new TypePattern(Key.class, "k"), 3),
+      new Case(new TypePattern(Event.class, "e"), 4)
+  );
+
+  @Test
+  public void noMatcherInstalled() {
+    var callSite = new MatcherCallSite(MethodHandles.lookup(), List.of(Event.class));
+    var invoker = callSite.dynamicInvoker();
+    assertThrows(MatchException.class, () -> { int __ = (int) invoker.invokeExact((Event) new Key('a'), new Object[1]); });
+  }
+
+  @Test
+  public void update() throws Throwable {
+    var callSite = new MatcherCallSite(MethodHandles.lookup(), List.of(Event.class));
+    var invoker = callSite.dynamicInvoker();
+    var bindings = new Object[2];
+
+    callSite.update(RULES_V1);
+    assertEquals(1, (int) invoker.invokeExact((Event) new Click(1, 2), bindings));
+    assertEquals(2, (int) invoker.invokeExact((Event) new Key('a'), bindings));
+
+    callSite.update(RULES_V2);
+    assertEquals(4, (int) invoker.invokeExact((Event) new Click(1, 2), bindings));
+    assertEquals(3, (int) invoker.invokeExact((Event) new Key('a'), bindings));
+  }
+
+  @Test
+  public void updateAsync() throws Throwable {
+    var callSite = new MatcherCallSite(MethodHandles.lookup(), List.of(Event.class));
+    var invoker = callSite.dynamicInvoker();
+
+    callSite.updateAsync(RULES_V1, Runnable::run).join();
+    assertEquals(1, (int) invoker.invokeExact((Event) new Click(1, 2), new Object[2]));
+  }
+
+  @Test
+  public void updateAsyncLastSubmittedWins() throws Throwable {
+    var callSite = new MatcherCallSite(MethodHandles.lookup(), List.of(Event.class));
+    var invoker = callSite.dynamicInvoker();
+    var pendings = new ArrayList<Runnable>();
+
+    var future1 = callSite.updateAsync(RULES_V1, pendings::add);
+    var future2 = callSite.updateAsync(RULES_V2, Runnable::run);
+    future2.join();
+    pendings.forEach(Runnable::run);  // the first update finishes last
+    future1.join();
+
+    assertEquals(4, (int) invoker.invokeExact((Event) new Click(1, 2), new Object[2]));
+  }
+
+  @Test
+  public void updateTuple() throws Throwable {
+    var callSite = new MatcherCallSite(MethodHandles.lookup(), List.of(Event.class, Event.class));
+    var invoker = callSite.dynamicInvoker();
+
+    callSite.updateTuple(List.of(
+        new TupleCase(List.of(new TypePattern(Key.class, "k1"), new TypePattern(Key.class, "k2")), 1),
+        new TupleCase(List.of(new TypePattern(Event.class, "e1"), new TypePattern(Event.class, "e2")), 2)
+    ));
+    assertEquals(1, (int) invoker.invokeExact((Event) new Key('a'), (Event) new Key('b'), new Object[2]));
+    assertEquals(2, (int) invoker.invokeExact((Event) new Key('a'), (Event) new Click(1, 2), new Object[2]));
+  }
+
+  @Test
+  public void updateWithATreeOnAnotherType() {
+    var callSite = new MatcherCallSite(MethodHandles.lookup(), List.of(Event.class));
+    var root = PatternTrees.createTree(Key.class, List.of(new Case(new TypePattern(Key.class, "k"), 1)));
+    assertThrows(IllegalArgumentException.class, () -> callSite.update(root));
+  }
+
+  @Test
+  public void updateATupleWithCases() {
+    var callSite = new MatcherCallSite(MethodHandles.lookup(), List.of(Event.class, Event.class));
+    assertThrows(IllegalArgumentException.class, () -> callSite.update(List.of(new Case(new TypePattern(Key.class, "k"), 1))));
+  }
+}
@@ -0,0 +1,169 @@
+package com.github.forax.patterntree;
+
+import com.github.forax.patterntree.Pattern.RecordPattern;
+import com.github.forax.patterntree.Pattern.TypePattern;
+import org.junit.jupiter.api.Test;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class MatcherRegistryTest {
+  sealed interface Message {}
+  record Envelope(Header header, Payload payload) implements Message {}
+  record Ping() implements Message {}
+  record Header(String from, int priority) {}
+  record Payload(Object body) {}
+
+  private static Case envelope(int index) {
+    // case Envelope(Header(String from, int priority), Payload(String s))
+    return new Case(new RecordPattern(Envelope.class,
+        new RecordPattern(Header.class, new TypePattern(String.class, "from"), new TypePattern(int.class, "priority")),
+        new RecordPattern(Payload.class, new TypePattern(String.class, "s"))), index);
+  }
+
+  private static PatternTrees.Node createTree(List<Case> cases) {
+    var root = PatternTrees.createTree(Message.class, cases);
+    root.inferTotality();
+    return root;
+  }
+
+  @Test
+  public void shareASubTree() throws Throwable {
+    var registry = new MatcherRegistry(MethodHandles.lookup());
+    var matcher1 = registry.compile(createTree(List.of(
+        envelope(1),
+        new Case(new RecordPattern(Envelope.class, new TypePattern(Header.class, "h"), new TypePattern(Payload.class, "p")), 2),
+        new Case(new TypePattern(Ping.class, "p"), 3)
+    )));
+    var matcher2 = registry.compile(createTree(List.of(
+        new Case(new TypePattern(Ping.class, "p"), 10),
+        envelope(11),
+        new Case(new RecordPattern(Envelope.class, new TypePattern(Header.class, "h"), new TypePattern(Payload.class, "p")), 12)
+    )));
+    assertEquals(1, registry.sharedCount());
+
+    var bindings = new Object[3];
+    var envelope = new Envelope(new Header("bob", 2), new Payload("hello"));
+    assertEquals(1, (int) matcher1.invokeExact((Message) envelope, bindings));
+    assertArrayEquals(new Object[] { "bob", 2, "hello" }, bindings);
+    assertEquals(11, (int) matcher2.invokeExact((Message) envelope, bindings));
+    var envelope2 = new Envelope(new Header("bob", 2), new Payload(42));
+    assertEquals(2, (int) matcher1.invokeExact((Message) envelope2, bindings));
+    assertEquals(12, (int) matcher2.invokeExact((Message) envelope2, bindings));
+    assertEquals(3, (int) matcher1.invokeExact((Message) new Ping(), bindings));
+    assertEquals(10, (int) matcher2.invokeExact((Message) new Ping(), bindings));
+  }
+
+  @Test
+  public void sharedMethodFallsThrough() throws Throwable {
+    var registry = new MatcherRegistry(MethodHandles.lookup());
+    var matcher = registry.compile(createTree(List.of(
+        envelope(1),
+        new Case(new TypePattern(Message.class, "m"), 2)
+    )));
+    assertEquals(1, registry.sharedCount());
+
+    var bindings = new Object[3];
+    assertEquals(1, (int) matcher.invokeExact((Message) new Envelope(new Header("bob", 2), new Payload("hello")), bindings));
+    assertEquals(2, (int) matcher.invokeExact((Message) new Envelope(new Header("bob", 2), new Payload(42)), bindings));
+    assertEquals(2, (int) matcher.invokeExact((Message) new Ping(), bindings));
+  }
+
+  @Test
+  public void sameResultsAsCompile() throws Throwable {
+    var root = createTree(List.of(
+        envelope(1),
+        new Case(new RecordPattern(Envelope.class, new TypePattern(Header.class, "h"), new TypePattern(Payload.class, "p")), 2),
+        new Case(new TypePattern(Ping.class, "p"), 3)
+    ));
+    var matcher = new MatcherRegistry(MethodHandles.lookup()).compile(root);
+    var expected = JavaSource.compile(root, MethodHandles.lookup());
+    for(var message: List.<Message>of(new Ping(),
+        new Envelope(new Header("bob", 2), new Payload("hello")),
+        new Envelope(new Header("bob", 2), new Payload(null)))) {
+      assertEquals((int) expected.invokeExact(message, new Object[3]), (int) matcher.invokeExact(message, new Object[3]));
+    }
+  }
+
+  @Test
+  public void compileConcurrently() throws Throwable {
+    var registry = new MatcherRegistry(MethodHandles.lookup());
+    try(var executor = Executors.newFixedThreadPool(4)) {
+      var futures = new ArrayList<Future<MethodHandle>>();
+      for(var i = 0; i < 4; i++) {
+        var index = i;
+        futures.add(executor.submit(() -> registry.compile(createTree(List.of(
+            envelope(index),
+            new Case(new TypePattern(Message.class, "m"), 10)
+        )))));
+      }
+      var envelope = new Envelope(new Header("bob", 2), new Payload("hello"));
+      for(var i = 0; i < futures.size(); i++) {
+        var matcher = futures.get(i).get();
+        assertEquals(i, (int) matcher.invokeExact((Message) envelope, new Object[3]));
+        assertEquals(10, (int) matcher.invokeExact((Message) new Ping(), new Object[3]));
+      }
+      assertEquals(1, registry.sharedCount());
+    }
+  }
+
+  @Test
+  public void sharedSource() {
+    var root = createTree(List.of(
+        envelope(1),
+        new Case(new RecordPattern(Envelope.class, new TypePattern(Header.class, "h"), new TypePattern(Payload.class, "p")), 2),
+        new Case(new TypePattern(Ping.class, "p"), 3)
+    ));
+    var sharedMethods = new JavaSource.SharedMethods();
+    var builder = new StringBuilder();
+    JavaSource.toJava(root, "", "Matcher", builder, new HashMap<>(), sharedMethods, JavaSource.Mode.TOTAL);
+    var source = builder.toString();
+
+    assertTrue(source.contains("int r2 = (int) SHARED_0.invokeExact(r1, bindings);\n      return r2 + 1;"));
+    assertEquals(1, sharedMethods.methods().size());
+    var method = sharedMethods.methods().get(0);
+    assertEquals("com.github.forax.patterntree.MatcherRegistryTest.Envelope r0, Object[] bindings", method.parameters());
+    assertTrue(method.body().contains("return 0;"));
+    assertTrue(method.body().endsWith("return 1;\n"));
+    assertFalse(method.fallsThrough());
+  }
+
+  @Test
+  public void sharedMethodNotCompiledIsInTheMatcher() {
+    var root = createTree(List.of(
+        envelope(1),
+        new Case(new TypePattern(Ping.class, "p"), 2)
+    ));
+    var builder = new StringBuilder();
+    JavaSource.toJava(root, "", "Matcher", builder, new HashMap<>(), new JavaSource.SharedMethods(), JavaSource.Mode.TOTAL);
+    var source = builder.toString();
+
+    assertTrue(source.contains("SHARED_0 = local(\"match0\", "));
+    assertTrue(source.contains("static int match0(com.github.forax.patterntree.MatcherRegistryTest.Envelope r0, Object[] bindings) {"));
+    assertFalse(source.contains("classDataAt"));
+  }
+
+  @Test
+  public void sharedMethodAlreadyCompiledIsInTheClassData() {
+    var root = createTree(List.of(
+        envelope(1),
+        new Case(new TypePattern(Ping.class, "p"), 2)
+    ));
+    var handle = MethodHandles.zero(int.class);
+    var sharedMethods = new JavaSource.SharedMethods(__ -> handle);
+    var builder = new StringBuilder();
+    JavaSource.toJava(root, "", "Matcher", builder, new HashMap<>(), sharedMethods, JavaSource.Mode.TOTAL);
+    var source = builder.toString();
+
+    assertTrue(source.contains("SHARED_0 = shared(0);"));
+    assertFalse(source.contains("static int match0("));
+    assertEquals(List.of(handle), sharedMethods.compiledHandles());
+  }
+}
@@ -0,0 +1,238 @@
+package com.github.forax.patterntree;
+
+import com.github.forax.patterntree.Pattern.RecordPattern;
+import com.github.forax.patterntree.Pattern.TypePattern;
+import org.junit.jupiter.api.Test;
+
+import java.lang.invoke.MethodHandles;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Flow;
+import java.util.concurrent.SubmissionPublisher;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class MatcherRouterTest {
+  sealed interface Event {}
+  record Click(int x, int y) implements Event {}
+  record Key(char c) implements Event {}
+
+  private static final List<Case> CASES = List.of(
+      new Case(new RecordPattern(Click.class, new TypePattern(int.class, "x"), new TypePattern(int.class, "y")), 1),
+      new Case(new TypePattern(Key.class, "k"), 2)
+  );
+
+  // a subscriber that requests the items one by one
+  private static final class Collector<T> implements Flow.Subscriber<T> {
+    private final List<T> items = new ArrayList<>();
+    private final CompletableFuture<List<T>> result = new CompletableFuture<>();
+    private final long initialDemand;
+    private Flow.Subscription subscription;
+
+    private Collector(long initialDemand) {
+      this.initialDemand = initialDemand;
+    }
+
+    @Override
+    public void onSubscribe(Flow.Subscription subscription) {
+      this.subscription = subscription;
+      if (initialDemand != 0) {
+        subscription.request(initialDemand);
+      }
+    }
+
+    @Override
+    public void onNext(T item) {
+      items.add(item);
+      subscription.request(1);
+    }
+
+    @Override
+    public void onError(Throwable throwable) {
+      if (subscription == null) {
+        result.completeExceptionally(new IllegalStateException("onError before onSubscribe"));
+        return;
+      }
+      result.completeExceptionally(throwable);
+    }
+
+    @Override
+    public void onComplete() {
+      if (subscription == null) {
+        result.completeExceptionally(new IllegalStateException("onComplete before onSubscribe"));
+        return;
+      }
+      result.complete(items);
+    }
+  }
+
+  @Test
+  public void route() throws Exception {
+    var clicks = new Collector<Event>(1);
+    var keys = new Collector<Event>(1);
+    try(var executor = Executors.newVirtualThreadPerTaskExecutor();
+        var publisher = new SubmissionPublisher<Event>()) {
+      var router = new MatcherRouter<>(MethodHandles.lookup(), Event.class, CASES, Map.of(1, clicks, 2, keys), executor, 4);
+      publisher.subscribe(router);
+      for(var i = 0; i < 100; i++) {
+        publisher.submit(i % 3 == 0? new Key((char) ('a' + i % 26)): new Click(i, i));
+      }
+      publisher.close();
+
+      var clickList = clicks.result.get(10, TimeUnit.SECONDS);
+      var keyList = keys.result.get(10, TimeUnit.SECONDS);
+      assertEquals(66, clickList.size());
+      assertEquals(34, keyList.size());
+      assertTrue(clickList.stream().allMatch(Click.class::isInstance));
+      assertEquals(new Click(1, 1), clickList.get(0));
+      assertEquals(new Key('a'), keyList.get(0));
+    }
+  }
+
+  @Test
+  public void backpressure() {
+    var clicks = new Collector<Event>(0);  // never requests
+    var keys = new Collector<Event>(Long.MAX_VALUE);
+    var requested = new ArrayList<Long>();
+    var router = new MatcherRouter<>(MethodHandles.lookup(), Event.class, CASES, Map.of(1, clicks, 2, keys), Runnable::run, 2);
+    router.onSubscribe(new Flow.Subscription() {
+      @Override
+      public void request(long n) {
+        requested.add(n);
+      }
+
+      @Override
+      public void cancel() {
+        fail();
+      }
+    });
+    assertEquals(List.of(2L), requested);
+
+    router.onNext(new Key('a'));  // delivered, so one more item is requested
+    assertEquals(List.of(2L, 1L), requested);
+    router.onNext(new Click(1, 2));
+    router.onNext(new Click(3, 4));  // the buffer of clicks is full
+    assertEquals(List.of(2L, 1L), requested);
+
+    clicks.subscription.request(1);  // the collector requests the next click in onNext, the buffer is empty
+    assertEquals(List.of(2L, 1L, 2L), requested);
+    assertEquals(List.of(new Key('a')), keys.items);
+    assertEquals(List.of(new Click(1, 2), new Click(3, 4)), clicks.items);
+  }
+
+  @Test
+  public void noMatch() {
+    var clicks = new Collector<Object>(1);
+    var keys = new Collector<Object>(1);
+    var cancelled = new boolean[1];
+    var cases = List.of(new Case(new TypePattern(Click.class, "c"), 1), new Case(new TypePattern(Key.class, "k"), 2));
+    var router = new MatcherRouter<>(MethodHandles.lookup(), Object.class, cases, Map.of(1, clicks, 2, keys), Runnable::run, 2);
+    router.onSubscribe(new Flow.Subscription() {
+      @Override
+      public void request(long n) {}
+
+      @Override
+      public void cancel() {
+        cancelled[0] = true;
+      }
+    });
+    router.onNext("not an event");
+
+    assertTrue(cancelled[0]);
+    assertTrue(clicks.result.isCompletedExceptionally());
+    assertTrue(keys.result.isCompletedExceptionally());
+  }
+
+  @Test
+  public void moreItemsThanRequested() {
+    var clicks = new Collector<Event>(0);
+    var keys = new Collector<Event>(0);
+    var cancelled = new boolean[1];
+    var router = new MatcherRouter<>(MethodHandles.lookup(), Event.class, CASES, Map.of(1, clicks, 2, keys), Runnable::run, 2);
+    router.onSubscribe(new Flow.Subscription() {
+      @Override
+      public void request(long n) {}
+
+      @Override
+      public void cancel() {
+        cancelled[0] = true;
+      }
+    });
+    router.onNext(new Key('a'));
+    router.onNext(new Key('b'));
+    router.onNext(new Key('c'));  // only 2 items were requested
+
+    assertTrue(cancelled[0]);
+    assertTrue(clicks.result.isCompletedExceptionally());
+    assertTrue(keys.result.isCompletedExceptionally());
+    var exception = assertThrows(CompletionException.class, keys.result::join);
+    assertInstanceOf(IllegalStateException.class, exception.getCause());
+  }
+
+  @Test
+  public void onSubscribeIsTheFirstSignal() {
+    var clicks = new Collector<Event>(1);
+    var keys = new Collector<Event>(1);
+    var router = new MatcherRouter<>(MethodHandles.lookup(), Event.class, CASES, Map.of(1, clicks, 2, keys), Runnable::run, 2);
+    router.onSubscribe(new Flow.Subscription() {
+      @Override
+      public void request(long n) {
+        router.onComplete();  // an empty upstream
+      }
+
+      @Override
+      public void cancel() {}
+    });
+
+    assertEquals(List.of(), clicks.result.join());
+    assertEquals(List.of(), keys.result.join());
+  }
+
+  @Test
+  public void subscriberThatThrowsInOnError() {
+    var clicks = new Flow.Subscriber<Event>() {
+      @Override
+      public void onSubscribe(Flow.Subscription subscription) {
+        subscription.request(-1);  // invalid, so the router signals onError
+      }
+
+      @Override
+      public void onNext(Event item) {
+        fail();
+      }
+
+      @Override
+      public void onError(Throwable throwable) {
+        throw new IllegalStateException("oops");
+      }
+
+      @Override
+      public void onComplete() {
+        fail();
+      }
+    };
+    var keys = new Collector<Event>(1);
+    var router = new MatcherRouter<>(MethodHandles.lookup(), Event.class, CASES, Map.of(1, clicks, 2, keys), Runnable::run, 2);
+    router.onSubscribe(new Flow.Subscription() {
+      @Override
+      public void request(long n) {}
+
+      @Override
+      public void cancel() {}
+    });
+
+    router.onNext(new Key('a'));  // the exception of onError does not stop the router
+    assertEquals(List.of(new Key('a')), keys.items);
+  }
+
+  @Test
+  public void noSubscriberForACase() {
+    assertThrows(IllegalArgumentException.class,
+        () -> new MatcherRouter<>(MethodHandles.lookup(), Event.class, CASES, Map.of(1, new Collector<Event>(1)), Runnable::run, 2));
+  }
+}
@@ -0,0 +1,94 @@
+package com.github.forax.patterntree;
+
+import com.github.forax.patterntree.Pattern.RecordPattern;
+import com.github.forax.patterntree.Pattern.TypePattern;
+import org.junit.jupiter.api.Test;
+
+import java.io.StringWriter;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class MermaidTest {
+  record Foo(Object o) {}
+  record Bar(int x) {}
+
+  private static PatternTrees.Node createTree() {
+    // Object o = ...
+    // switch(o) {
+    //   case Foo(Bar(int x)) -> 1
+    //   case Object o2 -> 2
+    // }
+    return PatternTrees.createTree(Object.class, List.of(
+            new Case(new RecordPattern(Foo.class, new RecordPattern(Bar.class, new TypePattern(int.class, "x"))), 1),
+            new Case(new TypePattern(Object.class, "o2"), 2)
+        )
+    );
+  }
+
+  @Test
+  public void toMermaidJS() {
+    assertEquals("""
+        flowchart LR
+          id0("Object")
+          id0-- Foo --oid1
+          id0-- Object --oid2
+          id1("Foo")
+          id1-- "0.o" -->id3
+          id3("Object")
+          id3-- Bar --oid4
+          id4("Bar")
+          id4-- "0.x" -->id5
+          id5("int")
+          id5-- int --oid6
+          style id6 stroke-dasharray: 5 5
+          id6("int, 1(0)")
+          style id2 stroke-dasharray: 5 5
+          id2("Object, 2(0)")
+        """, Mermaid.toMermaidJS(createTree()));
+  }
+
+  @Test
+  public void toMermaidJSWriter() {
+    var root = createTree();
+    var writer = new StringWriter();
+    Mermaid.toMermaidJS(root, writer);
+    assertEquals(Mermaid.toMermaidJS(root), writer.toString());
+  }
+
+  @Test
+  public void toMermaidJSCollapsed() {
+    var builder = new StringBuilder();
+    Mermaid.toMermaidJS(createTree(), builder, 2, Integer.MAX_VALUE);
+    assertEquals("""
+        flowchart LR
+          id0("Object")
+          id0-- Foo --oid1
+          id0-- Object --oid2
+          id1("Foo")
+          id1-- "0.o" -->id3
+          id3("Object")
+          id3-- Bar --oid4
+          style id4 stroke-dasharray: 2 2
+          id4("...")
+          style id2 stroke-dasharray: 5 5
+          id2("Object, 2(0)")
+        """, builder.toString());
+  }
+
+  @Test
+  public void toMermaidJSNodeBudget() {
+    var builder = new StringBuilder();
+    Mermaid.toMermaidJS(createTree(), builder, Integer.MAX_VALUE, 1);
+    assertEquals("""
+        flowchart LR
+          id0("Object")
+          id0-- Foo --oid1
+          id0-- Object --oid2
+          style id1 stroke-dasharray: 2 2
+          id1("...")
+          style id2 stroke-dasharray: 2 2
+          id2("...")
+        """, builder.toString());
+  }
+}
@@ -1,11 +1,21 @@
 package com.github.forax.patterntree;
 
+import com.github.forax.patterntree.Pattern.ConstantPattern;
 import com.github.forax.patterntree.Pattern.RecordPattern;
 import com.github.forax.patterntree.Pattern.TypePattern;
+import org.junit.jupiter.api.Disabled;
 import org.junit.jupiter.api.Nested;
 import org.junit.jupiter.api.Test;
 
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+import java.lang.invoke.MethodHandles;
+import java.lang.reflect.RecordComponent;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
+import java.util.Set;
 
 import static org.junit.jupiter.api.Assertions.*;
 
@@ -84,12 +94,11 @@ public class PatternTreesTest {
               A r4 = (A) r3;
               return call 2(r2, r4);
             }
-            // implicit null check of r3
             B r4 = (B) r3;    // catch(CCE) -> ICCE
             String r5 = r4.s();
             return call 3(r2, r5);
           }
-          // implicit null check of r1
+          requireNonNull(r1);  // null is a remainder
           B r2 = (B) r1;    // catch(CCE) -> ICCE
           I r3 = r0.i2();
           return call 4(r2, r3);
@@ -503,6 +512,55 @@ public class PatternTreesTest {
     }
   }
 
+  @Nested
+  class TypePatternAndRecordPatternOnTheSameComponent {
+    sealed interface Expr {}
+    record Num(int value) implements Expr {}
+    record Add(Expr left, Expr right) implements Expr {}
+
+    @Test
+    public void recordPatternAfterATypePattern() {
+      // Expr expr = ...
+      // switch(expr) {
+      //   case Add(Num _, Num(0)) -> 0
+      //   case Add(Num(1), Expr _) -> 1
+      //   case Expr e -> 2
+      // }
+      var e = assertThrows(IllegalArgumentException.class, () -> PatternTrees.createTree(Expr.class, List.of(
+              new Case(new RecordPattern(Add.class, new TypePattern(Num.class, "_"), new RecordPattern(Num.class, new ConstantPattern(0))), 0),
+              new Case(new RecordPattern(Add.class, new RecordPattern(Num.class, new ConstantPattern(1)), new TypePattern(Expr.class, "_")), 1),
+              new Case(new TypePattern(Expr.class, "e"), 2)
+          )
+      ));
+      assertTrue(e.getMessage().contains("not supported"));
+    }
+
+    // known failing case: the type pattern after the record pattern on the same type is inserted
+    // as the transition on null, which is the last transition of the component so it is not tested,
+    // and Add(Add(...), ...) is matched by the case 1 instead of the case 2
+    @Disabled("a node has only one transition per type, the type pattern after a record pattern is not tested with instanceof")
+    @Test
+    public void typePatternAfterARecordPattern() throws Throwable {
+      // Expr expr = ...
+      // switch(expr) {
+      //   case Add(Num(0), Expr _) -> 0
+      //   case Add(Num _, Expr _) -> 1
+      //   case Expr e -> 2
+      // }
+      var root = PatternTrees.createTree(Expr.class, List.of(
+              new Case(new RecordPattern(Add.class, new RecordPattern(Num.class, new ConstantPattern(0)), new TypePattern(Expr.class, "_")), 0),
+              new Case(new RecordPattern(Add.class, new TypePattern(Num.class, "_"), new TypePattern(Expr.class, "_")), 1),
+              new Case(new TypePattern(Expr.class, "e"), 2)
+          )
+      );
+      var matcher = JavaSource.compile(root, MethodHandles.lookup());
+
+      assertEquals(0, (int) matcher.invokeExact((Expr) new Add(new Num(0), new Num(2)), new Object[1]));
+      assertEquals(1, (int) matcher.invokeExact((Expr) new Add(new Num(1), new Num(2)), new Object[1]));
+      assertEquals(2, (int) matcher.invokeExact((Expr) new Add(new Add(new Num(1), new Num(2)), new Num(2)), new Object[1]));
+    }
+  }
+
   @Nested
   class SealedAndNull {
     record Foo(I i) {}
@@ -538,4 +596,732 @@ public class PatternTreesTest {
         """, root.toCode());
     }
   }
-}
\ No newline at end of file
+
+  @Nested
+  class EnumAndIntConstantPatterns {
+    enum Color { RED, GREEN, BLUE }
+    record Pixel(Color color, int x) {}
+
+    @Test
+    public void createTree() {
+      // Pixel pixel = ...
+      // switch(pixel) {
+      //   case Pixel(RED, int x) -> 1
+      //   case Pixel(GREEN, 0) -> 2
+      //   case Pixel(GREEN, 1) -> 3
+      //   case Pixel(BLUE, int _) -> 4
+      //   case Pixel(Color c, int x) -> 5
+      // }
+      var root = PatternTrees.createTree(Pixel.class, List.of(
+              new Case(new RecordPattern(Pixel.class, new ConstantPattern(Color.RED), new TypePattern(int.class, "x")), 1),
+              new Case(new RecordPattern(Pixel.class, new ConstantPattern(Color.GREEN), new ConstantPattern(0)), 2),
+              new Case(new RecordPattern(Pixel.class, new ConstantPattern(Color.GREEN), new ConstantPattern(1)), 3),
+              new Case(new RecordPattern(Pixel.class, new ConstantPattern(Color.BLUE), new TypePattern(int.class, "_")), 4),
+              new Case(new RecordPattern(Pixel.class, new TypePattern(Color.class, "c"), new TypePattern(int.class, "x")), 5)
+          )
+      );
+
+      System.out.println(Mermaid.toMermaidJS(root));
+
+      assertEquals("""
+        Color r1 = r0.color();
+        if r1 != null {
+          switch r1.ordinal() {  // tableswitch
+            case 0 -> {  // RED
+              int r2 = r0.x();
+              return call 1(r2);
+            }
+            case 1 -> {  // GREEN
+              int r2 = r0.x();
+              switch r2 {  // lookupswitch
+                case 0 -> {
+                  return call 2();
+                }
+                case 1 -> {
+                  return call 3();
+                }
+              }
+            }
+            case 2 -> {  // BLUE
+              int r2 = r0.x();
+              return call 4();
+            }
+          }
+        }
+        int r2 = r0.x();
+        return call 5(r1, r2);
+        """, root.toCode());
+    }
+  }
+
+  @Nested
+  class StringConstantPatterns {
+    record Command(String name) {}
+
+    @Test
+    public void createTree() {
+      // Object o = ...
+      // switch(o) {
+      //   case Command("Aa") -> 1
+      //   case Command("BB") -> 2
+      //   case Command("run") -> 3
+      //   case Object o2 -> 4
+      // }
+      var root = PatternTrees.createTree(Object.class, List.of(
+              new Case(new RecordPattern(Command.class, new ConstantPattern("Aa")), 1),
+              new Case(new RecordPattern(Command.class, new ConstantPattern("BB")), 2),
+              new Case(new RecordPattern(Command.class, new ConstantPattern("run")), 3),
+              new Case(new TypePattern(Object.class, "o2"), 4)
+          )
+      );
+
+      System.out.println(Mermaid.toMermaidJS(root));
+
+      assertEquals("""
+        if r0 instanceof Command {
+          Command r1 = (Command) r0;
+          String r2 = r1.name();
+          if r2 != null {
+            switch r2.hashCode() {  // lookupswitch
+              case 2112 -> {
+                if r2.equals("Aa") {
+                  return call 1();
+                }
+                if r2.equals("BB") {
+                  return call 2();
+                }
+              }
+              case 113291 -> {
+                if r2.equals("run") {
+                  return call 3();
+                }
+              }
+            }
+          }
+        }
+        return call 4(r0);
+        """, root.toCode());
+    }
+  }
+
+  @Nested
+  class IncompatibleConstantPattern {
+    record Foo(long value) {}
+
+    record Bar(Object o) {}
+    enum Color { RED, GREEN }
+
+    @Test
+    public void createTree() {
+      var e = assertThrows(IllegalArgumentException.class, () -> PatternTrees.createTree(Foo.class, List.of(
+              new Case(new RecordPattern(Foo.class, new ConstantPattern(1)), 1)
+          )
+      ));
+      assertTrue(e.getMessage().startsWith("constant 1 of type java.lang.Integer is not compatible with the component "
+          + Foo.class.getName() + ".value of type long"), e.getMessage());
+    }
+
+    @Test
+    public void constantOnAnObjectComponent() {
+      // Bar bar = ...
+      // switch(bar) {
+      //   case Bar(Color.RED) -> 1
+      // }
+      var e = assertThrows(IllegalArgumentException.class, () -> PatternTrees.createTree(Bar.class, List.of(
+              new Case(new RecordPattern(Bar.class, new ConstantPattern(Color.RED)), 1)
+          )
+      ));
+      assertTrue(e.getMessage().startsWith("constant RED of type " + Color.class.getName() + " is not compatible with the component "
+          + Bar.class.getName() + ".o of type java.lang.Object"), e.getMessage());
+    }
+
+    @Test
+    public void constantOnTheSelector() {
+      var e = assertThrows(IllegalArgumentException.class, () -> PatternTrees.createTree(Object.class, List.of(
+              new Case(new ConstantPattern("hello"), 1)
+          )
+      ));
+      assertTrue(e.getMessage().contains("not compatible with the selector of type java.lang.Object"), e.getMessage());
+    }
+  }
+
+  @Nested
+  class InferTotality {
+    record Foo(I i, I i2) {}
+    sealed interface I {
+      record A(int x) implements I {}
+      record B(String s) implements I {}
+    }
+
+    @Test
+    public void createTree() {
+      // Foo foo = ...
+      // switch(foo) {
+      //   case Foo(A a, A(int x)) -> 1
+      //   case Foo(A a, A a2) -> 2
+      //   case Foo(A a, B(String s)) -> 3
+      //   case Foo(B b, I i) -> 4
+      // }
+      var root = PatternTrees.createTree(Foo.class, List.of(
+              new Case(new RecordPattern(Foo.class, new TypePattern(I.A.class, "a"), new RecordPattern(I.A.class, new TypePattern(int.class, "x"))), 1),
+              new Case(new RecordPattern(Foo.class, new TypePattern(I.A.class, "a"), new TypePattern(I.A.class, "a2")), 2),
+              new Case(new RecordPattern(Foo.class, new TypePattern(I.A.class, "a"), new RecordPattern(I.B.class, new TypePattern(String.class, "s"))), 3),
+              new Case(new RecordPattern(Foo.class, new TypePattern(I.B.class, "b"), new TypePattern(I.class, "i")), 4)
+          )
+      );
+      root.inferTotality();
+
+      System.out.println(Mermaid.toMermaidJS(root));
+
+      assertEquals("""
+          I r1 = r0.i();
+          if r1 instanceof A {
+            A r2 = (A) r1;
+            I r3 = r0.i2();
+            if r3 instanceof A {
+              A r4 = (A) r3;
+              int r5 = r4.x();
+              return call 1(r2, r5);
+            }
+            if r3 == null {
+              A r4 = (A) r3;
+              return call 2(r2, r4);
+            }
+            B r4 = (B) r3;    // catch(CCE) -> ICCE
+            String r5 = r4.s();
+            return call 3(r2, r5);
+          }
+          requireNonNull(r1);  // null is a remainder
+          B r2 = (B) r1;    // catch(CCE) -> ICCE
+          I r3 = r0.i2();
+          return call 4(r2, r3);
+          """, root.toCode());
+    }
+  }
+
+  @Nested
+  class InferTotalityNestedSealedHierarchy {
+    sealed interface I permits A, J {}
+    sealed interface J extends I permits B, C {}
+    record A() implements I {}
+    record B() implements J {}
+    final class C implements J {}
+
+    @Test
+    public void createTree() {
+      // I i = ...
+      // switch(i) {
+      //   case A() -> 1
+      //   case B() -> 2
+      //   case C c -> 3
+      // }
+      var root = PatternTrees.createTree(I.class, List.of(
+              new Case(new RecordPattern(A.class), 1),
+              new Case(new RecordPattern(B.class), 2),
+              new Case(new TypePattern(C.class, "c"), 3)
+          )
+      );
+      root.inferTotality();
+
+      assertEquals("""
+        if r0 instanceof A {
+          A r1 = (A) r0;
+          return call 1();
+        }
+        if r0 instanceof B {
+          B r1 = (B) r0;
+          return call 2();
+        }
+        requireNonNull(r0);  // null is a remainder
+        C r1 = (C) r0;    // catch(CCE) -> ICCE
+        return call 3(r1);
+        """, root.toCode());
+    }
+  }
+
+  @Nested
+  class InferTotalityWithAFallback {
+    record Foo(I i) {}
+    sealed interface I {
+      final class A implements I {}
+      final class B implements I {}
+    }
+
+    @Test
+    public void createTree() {
+      // Object o = ...
+      // switch(o) {
+      //   case Foo(A a) -> 1
+      //   case Foo(B b) -> 2
+      //   case Object o2 -> 3
+      // }
+      var root = PatternTrees.createTree(Object.class, List.of(
+              new Case(new RecordPattern(Foo.class, new TypePattern(I.A.class, "a")), 1),
+              new Case(new RecordPattern(Foo.class, new TypePattern(I.B.class, "b")), 2),
+              new Case(new TypePattern(Object.class, "o2"), 3)
+          )
+      );
+      root.inferTotality();
+
+      // Foo(null) is matched by the last case so the test on B can not be removed
+      assertEquals("""
+        if r0 instanceof Foo {
+          Foo r1 = (Foo) r0;
+          I r2 = r1.i();
+          if r2 instanceof A {
+            A r3 = (A) r2;
+            return call 1(r3);
+          }
+          if r2 instanceof B {
+            B r3 = (B) r2;
+            return call 2(r3);
+          }
+        }
+        return call 3(r0);
+        """, root.toCode());
+    }
+  }
+
+  @Nested
+  class InferTotalityWithAConditionalRecordPattern {
+    enum Color { RED, BLUE }
+    record Foo(I i) {}
+    sealed interface I {
+      record A(Color color) implements I {}
+      record B() implements I {}
+    }
+
+    @Test
+    public void createTree() {
+      // Foo foo = ...
+      // switch(foo) {
+      //   case Foo(A(RED)) -> 1
+      //   case Foo(B b) -> 2
+      // }
+      var root = PatternTrees.createTree(Foo.class, List.of(
+              new Case(new RecordPattern(Foo.class, new RecordPattern(I.A.class, new ConstantPattern(Color.RED))), 1),
+              new Case(new RecordPattern(Foo.class, new TypePattern(I.B.class, "b")), 2)
+          )
+      );
+      root.inferTotality();
+
+      // Foo(A(BLUE)) is not matched by the first case, so the test on B can not be removed
+      assertEquals("""
+        I r1 = r0.i();
+        if r1 instanceof A {
+          A r2 = (A) r1;
+          Color r3 = r2.color();
+          if r3 != null {
+            switch r3.ordinal() {  // lookupswitch
+              case 0 -> {  // RED
+                return call 1();
+              }
+            }
+          }
+        }
+        if r1 instanceof B {
+          B r2 = (B) r1;
+          return call 2(r2);
+        }
+        """, root.toCode());
+    }
+
+    sealed interface Expr {}
+    record Num(int value) implements Expr {}
+    record Neg(Expr expr) implements Expr {}
+    record Add(Expr left, Expr right) implements Expr {}
+
+    @Test
+    public void laterCaseStillMatches() throws Throwable {
+      // Expr expr = ...
+      // switch(expr) {
+      //   case Add(Add(Neg _, Expr _), Expr _) -> 1
+      //   case Add(Add(Object _, Expr _), Num(0)) -> 2
+      //   case Add(Add(Object _, Add(Expr _, Expr _)), Num(int _)) -> 3
+      //   case Add(Object _, Num(int _)) -> 4
+      // }
+      var cases = List.of(
+          new Case(new RecordPattern(Add.class,
+              new RecordPattern(Add.class, new TypePattern(Neg.class, "_"), new TypePattern(Expr.class, "_")),
+              new TypePattern(Expr.class, "_")), 1),
+          new Case(new RecordPattern(Add.class,
+              new RecordPattern(Add.class, new TypePattern(Object.class, "_"), new TypePattern(Expr.class, "_")),
+              new RecordPattern(Num.class, new ConstantPattern(0))), 2),
+          new Case(new RecordPattern(Add.class,
+              new RecordPattern(Add.class, new TypePattern(Object.class, "_"), new RecordPattern(Add.class, new TypePattern(Expr.class, "_"), new TypePattern(Expr.class, "_"))),
+              new RecordPattern(Num.class, new TypePattern(int.class, "_"))), 3),
+          new Case(new RecordPattern(Add.class, new TypePattern(Object.class, "_"), new RecordPattern(Num.class, new TypePattern(int.class, "_"))), 4)
+      );
+      var matcher = JavaSource.compile(PatternTrees.createTree(Expr.class, cases), MethodHandles.lookup());
+      var root = PatternTrees.createTree(Expr.class, cases);
+      root.inferTotality();
+      var totalMatcher = JavaSource.compile(root, MethodHandles.lookup());
+
+      var values = List.<Expr>of(
+          new Add(new Add(new Num(2), new Num(1)), new Num(2)),
+          new Add(new Add(new Neg(new Num(1)), new Num(1)), new Num(2)),
+          new Add(new Add(new Num(2), new Num(1)), new Num(0)),
+          new Add(new Add(new Num(2), new Add(new Num(1), new Num(1))), new Num(2)),
+          new Add(new Add(new Num(2), null), new Num(2)),
+          new Add(new Num(1), new Num(2)));
+      for(var value: values) {
+        var bindings = new Object[0];
+        assertEquals((int) matcher.invokeExact(value, bindings), (int) totalMatcher.invokeExact(value, bindings), value::toString);
+      }
+      assertEquals(4, (int) totalMatcher.invokeExact((Expr) new Add(new Add(new Num(2), new Num(1)), new Num(2)), new Object[0]));
+    }
+
+    @Test
+    public void deepNesting() {
+      // Expr expr = ...
+      // switch(expr) {
+      //   case Num(0) -> 0
+      //   case Neg(Num(0)) -> 1
+      //   case Neg(Neg(Num(0))) -> 2
+      //   ...
+      // }
+      var cases = new ArrayList<Case>();
+      for(var depth = 0; depth < 200; depth++) {
+        Pattern pattern = new RecordPattern(Num.class, new ConstantPattern(0));
+        for(var i = 0; i < depth; i++) {
+          pattern = new RecordPattern(Neg.class, pattern);
+        }
+        cases.add(new Case(pattern, depth));
+      }
+      var root = PatternTrees.createTree(Expr.class, cases);
+
+      // each node on Expr is conditional, the inference must not visit the sub-trees several times
+      assertTimeoutPreemptively(Duration.ofSeconds(5), root::inferTotality);
+      assertFalse(root.total);
+    }
+  }
+
+  @Nested
+  class PruneDominatedTypePattern {
+    @Test
+    public void createTree() {
+      // Object o = ...
+      // switch(o) {
+      //   case CharSequence cs -> 1
+      //   case String s -> 2
+      //   case Object o2 -> 3
+      // }
+      var root = PatternTrees.createTree(Object.class, List.of(
+              new Case(new TypePattern(CharSequence.class, "cs"), 1),
+              new Case(new TypePattern(String.class, "s"), 2),
+              new Case(new TypePattern(Object.class, "o2"), 3)
+          )
+      );
+
+      assertEquals(List.of(2), root.prune());
+
+      assertEquals("""
+        if r0 instanceof CharSequence {
+          CharSequence r1 = (CharSequence) r0;
+          return call 1(r1);
+        }
+        return call 3(r0);
+        """, root.toCode());
+    }
+  }
+
+  @Nested
+  class PruneImpliedTypeTest {
+    sealed interface I {}
+    record A(int x) implements I {}
+    record Foo(A a) {}
+
+    @Test
+    public void createTree() {
+      // Foo foo = ...
+      // switch(foo) {
+      //   case Foo(A(int x)) -> 1
+      //   case Foo(I i) -> 2
+      //   case Foo(Object o) -> 3
+      // }
+      var root = PatternTrees.createTree(Foo.class, List.of(
+              new Case(new RecordPattern(Foo.class, new RecordPattern(A.class, new TypePattern(int.class, "x"))), 1),
+              new Case(new RecordPattern(Foo.class, new TypePattern(I.class, "i")), 2),
+              new Case(new RecordPattern(Foo.class, new TypePattern(Object.class, "o")), 3)
+          )
+      );
+
+      // I i is unconditional on a component of type A, so Foo(null) is matched by the second case
+      assertEquals(List.of(3), root.prune());
+
+      assertEquals("""
+        A r1 = r0.a();
+        if r1 != null {
+          int r2 = r1.x();
+          return call 1(r2);
+        }
+        return call 2(r1);
+        """, root.toCode());
+    }
+  }
+
+  @Nested
+  class PruneDominatedConstantPatterns {
+    enum Color { RED, GREEN }
+    record Pixel(Color color) {}
+
+    @Test
+    public void createTree() {
+      // Pixel pixel = ...
+      // switch(pixel) {
+      //   case Pixel(Color c) -> 1
+      //   case Pixel(RED) -> 2
+      // }
+      var root = PatternTrees.createTree(Pixel.class, List.of(
+              new Case(new RecordPattern(Pixel.class, new TypePattern(Color.class, "c")), 1),
+              new Case(new RecordPattern(Pixel.class, new ConstantPattern(Color.RED)), 2)
+          )
+      );
+
+      assertEquals(List.of(2), root.prune());
+
+      assertEquals("""
+        Color r1 = r0.color();
+        return call 1(r1);
+        """, root.toCode());
+    }
+  }
+
+  @Nested
+  class NullCheckProvedByANullTransition {
+    record Foo(I i) {}
+    sealed interface I {
+      record B() implements I {}
+      final class C implements I {}
+    }
+
+    @Test
+    public void createTree() {
+      // Foo foo = ...
+      // switch(foo) {
+      //   case Foo(B()) -> 1
+      //   case Foo(B b) -> 2
+      //   case Foo(C c) -> 3
+      // }
+      var root = PatternTrees.createTree(Foo.class, List.of(
+              new Case(new RecordPattern(Foo.class, new RecordPattern(I.B.class)), 1),
+              new Case(new RecordPattern(Foo.class, new TypePattern(I.B.class, "b")), 2),
+              new Case(new RecordPattern(Foo.class, new TypePattern(I.C.class, "c")), 3)
+          )
+      );
+      root.inferTotality();
+
+      // r1 can not be null after the null transition, so there is no requireNonNull
+      assertEquals("""
+        I r1 = r0.i();
+        if r1 instanceof B {
+          B r2 = (B) r1;
+          return call 1();
+        }
+        if r1 == null {
+          B r2 = (B) r1;
+          return call 2(r2);
+        }
+        C r2 = (C) r1;    // catch(CCE) -> ICCE
+        return call 3(r2);
+        """, root.toCode());
+    }
+  }
+
+  @Nested
+  class TypeTestNotProvedBySecondBound {
+    interface I {}
+    record A() implements I, Comparable<A> {
+      @Override
+      public int compareTo(A a) {
+        return 0;
+      }
+    }
+    record Box<T extends Comparable<T> & I>(T value) {}
+
+    private static PatternTrees.Node boxTree() {
+      return PatternTrees.createTree(Box.class, List.of(
+              new Case(new RecordPattern(Box.class, new TypePattern(A.class, "a")), 1),
+              new Case(new RecordPattern(Box.class, new TypePattern(I.class, "i")), 2)
+          )
+      );
+    }
+
+    @Test
+    public void createTree() {
+      // Box<?> box = ...
+      // switch(box) {
+      //   case Box(A a) -> 1
+      //   case Box(I i) -> 2
+      // }
+      var root = boxTree();
+
+      // only the erasure Comparable is checked by the VM, so I i is not unconditional
+      assertEquals("""
+        Comparable r1 = r0.value();
+        if r1 instanceof A {
+          A r2 = (A) r1;
+          return call 1(r2);
+        }
+        if r1 instanceof I {
+          I r2 = (I) r1;
+          return call 2(r2);
+        }
+        """, root.toCode());
+    }
+
+    @Test
+    @SuppressWarnings({"rawtypes", "unchecked"})
+    public void heapPollution() throws Throwable {
+      var matcher = JavaSource.compilePartial(boxTree(), MethodHandles.lookup());
+
+      assertEquals(-1, (int) matcher.invokeExact((Box) new Box("not an I"), new Object[1]));
+    }
+  }
+
+  @Nested
+  class TupleDoubleDispatch {
+    sealed interface Shape {}
+    record Circle(int radius) implements Shape {}
+    record Square(int side) implements Shape {}
+
+    @Test
+    public void createTree() {
+      // Shape shape1 = ..., shape2 = ...
+      // switch(shape1, shape2) {
+      //   case (Circle c1, Circle c2) -> 1
+      //   case (Circle c, Square(int side)) -> 2
+      //   case (Square s, Shape shape) -> 3
+      // }
+      var root = PatternTrees.createTree(List.of(Shape.class, Shape.class), List.of(
+              new TupleCase(List.of(new TypePattern(Circle.class, "c1"), new TypePattern(Circle.class, "c2")), 1),
+              new TupleCase(List.of(new TypePattern(Circle.class, "c"), new RecordPattern(Square.class, new TypePattern(int.class, "side"))), 2),
+              new TupleCase(List.of(new TypePattern(Square.class, "s"), new TypePattern(Shape.class, "shape")), 3)
+          )
+      );
+      root.inferTotality();
+
+      assertEquals(List.of(Shape.class, Shape.class), root.selectorTypes());
+      assertTrue(root.find(0, Circle.class, 1).total);
+
+      // the values are parameters p0 and p1, there is no tuple
+      assertEquals("""
+        Shape r1 = p0;
+        if r1 instanceof Circle {
+          Circle r2 = (Circle) r1;
+          Shape r3 = p1;
+          if r3 instanceof Circle {
+            Circle r4 = (Circle) r3;
+            return call 1(r2, r4);
+          }
+          // implicit null check of r3
+          Square r4 = (Square) r3;    // catch(CCE) -> ICCE
+          int r5 = r4.side();
+          return call 2(r2, r5);
+        }
+        requireNonNull(r1);  // null is a remainder
+        Square r2 = (Square) r1;    // catch(CCE) -> ICCE
+        Shape r3 = p1;
+        return call 3(r2, r3);
+        """, root.toCode());
+    }
+
+    @Test
+    public void badNumberOfPatterns() {
+      assertThrows(IllegalArgumentException.class, () -> PatternTrees.createTree(List.of(Shape.class, Shape.class), List.of(
+              new TupleCase(List.of(new TypePattern(Circle.class, "c")), 1)
+          )
+      ));
+    }
+
+    @Test
+    public void caseIsNotATuple() {
+      var item = new Case(new TypePattern(Circle.class, "c"), 1);
+      assertEquals(new Case(new TypePattern(Circle.class, "c"), 1), item);
+      assertEquals(List.of("pattern", "index"),
+          Arrays.stream(Case.class.getRecordComponents()).map(RecordComponent::getName).toList());
+    }
+  }
+
+  @Nested
+  class NonNullComponents {
+    @Retention(RetentionPolicy.RUNTIME)
+    @interface NonNull {}
+
+    record Foo(@NonNull I i, I i2) {}
+    sealed interface I {
+      record A(int x) implements I {}
+      record B(String s) implements I {}
+    }
+
+    @Test
+    public void createTree() {
+      // Foo foo = ...
+      // switch(foo) {
+      //   case Foo(A a, A(int x)) -> 1
+      //   case Foo(A a, A a2) -> 2
+      //   case Foo(A a, B(String s)) -> 3
+      //   case Foo(B b, I i) -> 4
+      // }
+      var root = PatternTrees.createTree(Foo.class, List.of(
+              new Case(new RecordPattern(Foo.class, new TypePattern(I.A.class, "a"), new RecordPattern(I.A.class, new TypePattern(int.class, "x"))), 1),
+              new Case(new RecordPattern(Foo.class, new TypePattern(I.A.class, "a"), new TypePattern(I.A.class, "a2")), 2),
+              new Case(new RecordPattern(Foo.class, new TypePattern(I.A.class, "a"), new RecordPattern(I.B.class, new TypePattern(String.class, "s"))), 3),
+              new Case(new RecordPattern(Foo.class, new TypePattern(I.B.class, "b"), new TypePattern(I.class, "i")), 4)
+          )
+      );
+      root.inferTotality();
+      root.setNonNull(Set.of(NonNull.class));
+      root.setNonNull(Foo.class, "i2");
+
+      assertEquals("""
+          I r1 = r0.i();
+          if r1 instanceof A {
+            A r2 = (A) r1;
+            I r3 = r0.i2();
+            if r3 instanceof A {
+              A r4 = (A) r3;
+              int r5 = r4.x();
+              return call 1(r2, r5);
+            }
+            B r4 = (B) r3;    // catch(CCE) -> ICCE
+            String r5 = r4.s();
+            return call 3(r2, r5);
+          }
+          B r2 = (B) r1;    // catch(CCE) -> ICCE
+          I r3 = r0.i2();
+          return call 4(r2, r3);
+          """, root.toCode());
+    }
+
+    @Test
+    public void annotationsAreNotTrustedByDefault() {
+      // Foo foo = ...
+      // switch(foo) {
+      //   case Foo(A a, I i) -> 1
+      //   case Foo(B b, I i) -> 2
+      // }
+      var root = PatternTrees.createTree(Foo.class, List.of(
+              new Case(new RecordPattern(Foo.class, new TypePattern(I.A.class, "a"), new TypePattern(I.class, "i")), 1),
+              new Case(new RecordPattern(Foo.class, new TypePattern(I.B.class, "b"), new TypePattern(I.class, "i")), 2)
+          )
+      );
+      root.inferTotality();
+
+      assertTrue(root.toCode().contains("requireNonNull(r1);  // null is a remainder"));
+      root.setNonNull(Set.of(Retention.class));
+      assertTrue(root.toCode().contains("requireNonNull(r1);  // null is a remainder"));
+      root.setNonNull(Set.of(NonNull.class));
+      assertFalse(root.toCode().contains("requireNonNull(r1);"));
+    }
+
+    @Test
+    public void setNonNullOnAnUnknownComponent() {
+      var root = PatternTrees.createTree(Foo.class, List.of(new Case(new TypePattern(Foo.class, "foo"), 1)));
+      assertAll(
+          () -> assertThrows(IllegalArgumentException.class, () -> root.setNonNull(Foo.class, "unknown")),
+          () -> assertThrows(IllegalArgumentException.class, () -> root.setNonNull(I.class, "i"))
+      );
+    }
+  }
+}
@@ -0,0 +1,468 @@
+package com.github.forax.patterntree;
+
+import com.github.forax.patterntree.Pattern.ConstantPattern;
+import com.github.forax.patterntree.Pattern.RecordPattern;
+import com.github.forax.patterntree.Pattern.TypePattern;
+import com.github.forax.patterntree.PatternTrees.Node;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.reflect.InvocationTargetException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Random;
+
+import static java.lang.invoke.MethodType.methodType;
+
+// Measures the startup and the warm-up costs of the strategies to run a switch, on generated cases
+// of increasing width (number of cases) and depth (nesting of the record patterns):
+// - the time and the allocation of PatternTrees.createTree(),
+// - the time and the allocation of building the matcher, the time to the first match,
+// - the number of classes loaded, the growth of the metaspace and of the code cache,
+// - the number of invocations before reaching the steady state, and the time of a match in the steady state.
+//
+// The strategies are
+//   text         JavaSource.toJava(), only the source is generated, there is no match
+//   bytecode     JavaSource.compile(), the source is compiled by javac and defined as a hidden class
+//   shared       MatcherRegistry.compile(), same with the record deconstructions in shared methods
+//   callsite     MatcherCallSite.update(), the matcher is called through MatcherCallSite.dynamicInvoker()
+//   combinator   a tree of method handles built with the combinators of MethodHandles, nothing is compiled by javac
+//   interpreter  a reflective interpreter that walks the tree at each match, nothing is generated
+//
+// The classes of javac are loaded by the first compilation, so to measure the cost for a fresh VM,
+// run one strategy per VM:
+//   java -cp target/classes:target/test-classes:<asm jars> com.github.forax.patterntree.StartupBenchmark bytecode
+public class StartupBenchmark {
+  sealed interface Expr {}
+  record Num(int value) implements Expr {}
+  record Neg(Expr expr) implements Expr {}
+  record Add(Expr left, Expr right) implements Expr {}
+  record Mul(Expr left, Expr right) implements Expr {}
+
+  private static final int[] WIDTHS = { 8, 64, 512 };
+  private static final int[] DEPTHS = { 1, 2, 3 };
+  private static final int BATCH = 1_000;
+  private static final int BATCH_COUNT = 200;
+  private static final List<String> STRATEGIES = List.of("text", "bytecode", "shared", "callsite", "combinator", "interpreter");
+
+  // the patterns on a record type are always record patterns, the tree builder does not support a type pattern
+  // and a record pattern on the same type in a component
+  private static Pattern pattern(Random random, int depth) {
+    if (depth == 0) {
+      return switch (random.nextInt(3)) {
+        case 0 -> new TypePattern(Expr.class, "_");
+        case 1 -> new RecordPattern(Num.class, new ConstantPattern(random.nextInt(16)));
+        default -> new RecordPattern(Num.class, new TypePattern(int.class, "_"));
+      };
+    }
+    return switch (random.nextInt(3)) {
+      case 0 -> new RecordPattern(Neg.class, pattern(random, depth - 1));
+      case 1 -> new RecordPattern(Add.class, pattern(random, depth - 1), pattern(random, depth - 1));
+      default -> new RecordPattern(Mul.class, pattern(random, depth - 1), pattern(random, depth - 1));
+    };
+  }
+
+  private static Expr expr(Random random, int depth) {
+    if (depth == 0) {
+      return new Num(random.nextInt(16));
+    }
+    return switch (random.nextInt(3)) {
+      case 0 -> new Neg(expr(random, depth - 1));
+      case 1 -> new Add(expr(random, depth - 1), expr(random, depth - 1));
+      default -> new Mul(expr(random, depth - 1), expr(random, depth - 1));
+    };
+  }
+
+  // width distinct cases and a last case Expr e
+  static List<Case> cases(int width, int depth) {
+    var random = new Random(width * 31L + depth);
+    var patterns = new LinkedHashSet<Pattern>();
+    while (patterns.size() < width) {
+      patterns.add(pattern(random, depth));
+    }
+    var cases = new ArrayList<Case>();
+    for(var pattern: patterns) {
+      cases.add(new Case(pattern, cases.size()));
+    }
+    cases.add(new Case(new TypePattern(Expr.class, "e"), width));
+    return cases;
+  }
+
+  static Expr[] inputs(int depth) {
+    var random = new Random(depth);
+    var inputs = new Expr[1_024];
+    for(var i = 0; i < inputs.length; i++) {
+      inputs[i] = expr(random, depth);
+    }
+    return inputs;
+  }
+
+  @FunctionalInterface
+  interface Matcher {
+    int match(Expr expr, Object[] bindings) throws Throwable;
+  }
+
+  static Matcher of(MethodHandle mh) {
+    return (expr, bindings) -> (int) mh.invokeExact(expr, bindings);
+  }
+
+  // the matcher of a strategy or null if the strategy does not match
+  static Matcher matcher(String strategy, Node root) {
+    var lookup = MethodHandles.lookup();
+    return switch (strategy) {
+      case "text" -> {
+        JavaSource.toJava(root, StartupBenchmark.class.getPackageName(), "Matcher", new StringBuilder());
+        yield null;
+      }
+      case "bytecode" -> of(JavaSource.compile(root, lookup));
+      case "shared" -> of(new MatcherRegistry(lookup).compile(root));
+      case "callsite" -> {
+        var callSite = new MatcherCallSite(lookup, root.selectorTypes());
+        callSite.update(root);
+        yield of(callSite.dynamicInvoker());
+      }
+      case "combinator" -> of(Combinators.matcher(root, lookup));
+      case "interpreter" -> (expr, bindings) -> Interpreter.match(root, expr, bindings);
+      default -> throw new IllegalArgumentException("unknown strategy " + strategy);
+    };
+  }
+
+  // Walks the tree like the code generated by CodeGenerator, the transitions are tested in order
+  // and the search backtracks if a sub-tree does not match
+  static final class Interpreter {
+    private Interpreter() {
+      throw new AssertionError();
+    }
+
+    static int match(Node root, Object value, Object[] bindings) {
+      var index = match(root, value, new IdentityHashMap<>(), bindings);
+      if (index == -1) {
+        throw new MatchException(null, null);
+      }
+      return index;
+    }
+
+    private static int match(Node node, Object value, Map<Node, Object> scope, Object[] bindings) {
+      if (node.componentSource != null) {
+        try {
+          value = node.component.getAccessor().invoke(scope.get(node.componentSource));
+        } catch (IllegalAccessException e) {
+          throw new IllegalStateException(e);
+        } catch (InvocationTargetException e) {
+          throw new IllegalStateException(e.getCause());
+        }
+      }
+      scope.put(node, value);
+      if (node.index != Node.UNINITIALIZED) {
+        for(var i = 0; i < node.bindingNodes.size(); i++) {
+          bindings[i] = scope.get(node.bindingNodes.get(i));
+        }
+        return node.index;
+      }
+      var position = 0;
+      var iterator = node.map.entrySet().iterator();
+      while (iterator.hasNext()) {
+        if (position++ == node.constantPosition) {
+          var index = matchConstant(node, value, scope, bindings);
+          if (index != -1) {
+            return index;
+          }
+        }
+        var entry = iterator.next();
+        var type = entry.getKey();
+        var last = !iterator.hasNext();
+        boolean taken;
+        if (type == Node.NullWitness.class) {
+          taken = value == null;
+        } else if (last && (type.isAssignableFrom(node.targetClass) || node.total)) {
+          taken = true;  // matches null or is a remainder
+        } else {
+          taken = type.isInstance(value);
+        }
+        if (taken) {
+          var index = match(entry.getValue(), value, scope, bindings);
+          if (index != -1) {
+            return index;
+          }
+        }
+      }
+      if (node.constantPosition == node.map.size()) {
+        var index = matchConstant(node, value, scope, bindings);
+        if (index != -1) {
+          return index;
+        }
+      }
+      if (node.componentNode != null) {
+        return match(node.componentNode, value, scope, bindings);
+      }
+      return -1;
+    }
+
+    private static int matchConstant(Node node, Object value, Map<Node, Object> scope, Object[] bindings) {
+      var nextNode = value == null? null: node.constants.get(value);
+      return nextNode == null? -1: match(nextNode, value, scope, bindings);
+    }
+  }
+
+  // Builds the same walk as the interpreter with the combinators of MethodHandles, each node is a method handle
+  // (Object[] frame, Object[] bindings)int that returns the index of the case or -1 to backtrack,
+  // the frame stores the value of each node at the slot of the node
+  static final class Combinators {
+    private Combinators() {
+      throw new AssertionError();
+    }
+
+    private static final MethodHandle GET = MethodHandles.arrayElementGetter(Object[].class);
+    private static final MethodHandle SET = MethodHandles.arrayElementSetter(Object[].class);
+    private static final MethodHandle NO_MATCH =
+        MethodHandles.dropArguments(MethodHandles.constant(int.class, -1), 0, Object[].class, Object[].class);
+    private static final MethodHandle IS_INSTANCE, IS_NULL, EQUALS, IS_MATCH, CHECK_INDEX;
+    static {
+      var lookup = MethodHandles.lookup();
+      try {
+        IS_INSTANCE = lookup.findVirtual(Class.class, "isInstance", methodType(boolean.class, Object.class));
+        IS_NULL = lookup.findStatic(Objects.class, "isNull", methodType(boolean.class, Object.class));
+        EQUALS = lookup.findVirtual(Object.class, "equals", methodType(boolean.class, Object.class));
+        IS_MATCH = lookup.findStatic(Combinators.class, "isMatch", methodType(boolean.class, int.class));
+        CHECK_INDEX = lookup.findStatic(Combinators.class, "checkIndex", methodType(int.class, int.class));
+      } catch (NoSuchMethodException | IllegalAccessException e) {
+        throw new AssertionError(e);
+      }
+    }
+
+    private static boolean isMatch(int index) {
+      return index != -1;
+    }
+
+    private static int checkIndex(int index) {
+      if (index == -1) {
+        throw new MatchException(null, null);
+      }
+      return index;
+    }
+
+    // a method handle (Expr expr, Object[] bindings)int
+    static MethodHandle matcher(Node root, MethodHandles.Lookup lookup) {
+      var slots = new IdentityHashMap<Node, Integer>();
+      var node = node(root, slots, lookup);
+      // (Object[] frame, Object value, Object[] bindings)int, stores the value in the slot of the root
+      var start = MethodHandles.foldArguments(MethodHandles.dropArguments(node, 1, Object.class),
+          MethodHandles.insertArguments(SET, 1, slots.get(root)));
+      var frame = MethodHandles.insertArguments(MethodHandles.arrayConstructor(Object[].class), 0, slots.size());
+      var matcher = MethodHandles.filterReturnValue(MethodHandles.foldArguments(start, frame), CHECK_INDEX);
+      return matcher.asType(methodType(int.class, Expr.class, Object[].class));
+    }
+
+    // (Object[] frame)Object
+    private static MethodHandle get(int slot) {
+      return MethodHandles.insertArguments(GET, 1, slot);
+    }
+
+    // (Object[] frame, Object[] bindings)void, stores the result of value (Object[] frame)Object in the slot
+    private static MethodHandle set(int slot, MethodHandle value) {
+      var set = MethodHandles.filterArguments(MethodHandles.insertArguments(SET, 1, slot), 1, value);
+      return MethodHandles.permuteArguments(set, methodType(void.class, Object[].class, Object[].class), 0, 0);
+    }
+
+    // (Object[] frame, Object[] bindings)void, stores the value of the slot in the bindings
+    private static MethodHandle bind(int index, int slot) {
+      var bind = MethodHandles.filterArguments(MethodHandles.insertArguments(SET, 1, index), 1, get(slot));
+      return MethodHandles.permuteArguments(bind, methodType(void.class, Object[].class, Object[].class), 1, 0);
+    }
+
+    // (Object[] frame, Object[] bindings)boolean, tests the value of the slot
+    private static MethodHandle test(int slot, MethodHandle predicate) {
+      return MethodHandles.dropArguments(MethodHandles.filterArguments(predicate, 0, get(slot)), 1, Object[].class);
+    }
+
+    // calls the first method handle and the second one if the first one does not match
+    private static MethodHandle orElse(MethodHandle first, MethodHandle second) {
+      var result = MethodHandles.dropArguments(MethodHandles.identity(int.class), 1, Object[].class, Object[].class);
+      var isMatch = MethodHandles.dropArguments(IS_MATCH, 1, Object[].class, Object[].class);
+      var next = MethodHandles.dropArguments(second, 0, int.class);
+      return MethodHandles.foldArguments(MethodHandles.guardWithTest(isMatch, result, next), first);
+    }
+
+    // the child of a transition has the same value as the node
+    private static MethodHandle child(Node node, Node child, Map<Node, Integer> slots, MethodHandles.Lookup lookup) {
+      var target = node(child, slots, lookup);
+      return MethodHandles.foldArguments(target, set(slots.get(child), get(slots.get(node))));
+    }
+
+    private static MethodHandle node(Node node, Map<Node, Integer> slots, MethodHandles.Lookup lookup) {
+      var slot = slots.size();
+      slots.put(node, slot);
+      MethodHandle target;
+      if (node.index != Node.UNINITIALIZED) {
+        target = MethodHandles.dropArguments(MethodHandles.constant(int.class, node.index), 0, Object[].class, Object[].class);
+        for(var i = 0; i < node.bindingNodes.size(); i++) {
+          target = MethodHandles.foldArguments(target, bind(i, slots.get(node.bindingNodes.get(i))));
+        }
+      } else {
+        target = transitions(node, slot, slots, lookup);
+      }
+      if (node.componentSource != null) {
+        MethodHandle accessor;
+        try {
+          accessor = lookup.unreflect(node.component.getAccessor()).asType(methodType(Object.class, Object.class));
+        } catch (IllegalAccessException e) {
+          throw new IllegalStateException(e);
+        }
+        var value = MethodHandles.filterReturnValue(get(slots.get(node.componentSource)), accessor);
+        target = MethodHandles.foldArguments(target, set(slot, value));
+      }
+      return target;
+    }
+
+    private static MethodHandle transitions(Node node, int slot, Map<Node, Integer> slots, MethodHandles.Lookup lookup) {
+      var alternatives = new ArrayList<MethodHandle>();
+      var position = 0;
+      var iterator = node.map.entrySet().iterator();
+      while (iterator.hasNext()) {
+        if (position++ == node.constantPosition) {
+          constants(node, slot, slots, lookup, alternatives);
+        }
+        var entry = iterator.next();
+        var type = entry.getKey();
+        var last = !iterator.hasNext();
+        var child = child(node, entry.getValue(), slots, lookup);
+        if (type == Node.NullWitness.class) {
+          alternatives.add(MethodHandles.guardWithTest(test(slot, IS_NULL), child, NO_MATCH));
+        } else if (last && (type.isAssignableFrom(node.targetClass) || node.total)) {
+          alternatives.add(child);  // matches null or is a remainder
+        } else {
+          alternatives.add(MethodHandles.guardWithTest(test(slot, IS_INSTANCE.bindTo(type)), child, NO_MATCH));
+        }
+      }
+      if (node.constantPosition == node.map.size()) {
+        constants(node, slot, slots, lookup, alternatives);
+      }
+      if (node.componentNode != null) {
+        alternatives.add(node(node.componentNode, slots, lookup));
+      }
+      return alternatives.reversed().stream().reduce((second, first) -> orElse(first, second)).orElse(NO_MATCH);
+    }
+
+    private static void constants(Node node, int slot, Map<Node, Integer> slots, MethodHandles.Lookup lookup,
+                                  List<MethodHandle> alternatives) {
+      for(var entry: node.constants.entrySet()) {
+        var child = child(node, entry.getValue(), slots, lookup);
+        alternatives.add(MethodHandles.guardWithTest(test(slot, EQUALS.bindTo(entry.getKey())), child, NO_MATCH));
+      }
+    }
+  }
+
+  // the counters of the VM
+  record Snapshot(long nanos, long allocatedBytes, long loadedClasses, long metaspaceBytes, long codeCacheBytes) {
+    private static final com.sun.management.ThreadMXBean THREADS =
+        (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+
+    static Snapshot now() {
+      var pools = ManagementFactory.getMemoryPoolMXBeans();
+      return new Snapshot(System.nanoTime(),
+          THREADS.getCurrentThreadAllocatedBytes(),
+          ManagementFactory.getClassLoadingMXBean().getTotalLoadedClassCount(),
+          used(pools, "Metaspace"),
+          used(pools, "CodeHeap") + used(pools, "Code Cache"));
+    }
+
+    private static long used(List<MemoryPoolMXBean> pools, String prefix) {
+      return pools.stream().filter(pool -> pool.getName().startsWith(prefix)).mapToLong(pool -> pool.getUsage().getUsed()).sum();
+    }
+
+    Snapshot minus(Snapshot snapshot) {
+      return new Snapshot(nanos - snapshot.nanos, allocatedBytes - snapshot.allocatedBytes, loadedClasses - snapshot.loadedClasses,
+          metaspaceBytes - snapshot.metaspaceBytes, codeCacheBytes - snapshot.codeCacheBytes);
+    }
+  }
+
+  // the invocations before the time of a batch (the median of 5 consecutive batches to ignore the pauses of the GC)
+  // stays below 1.5 times the time of the steady state (the median of the last 20 batches),
+  // and the time of a match in the steady state
+  record WarmUp(long invocations, double nanosPerMatch) {}
+
+  static WarmUp warmUp(Matcher matcher, Expr[] inputs, Object[] bindings) throws Throwable {
+    var times = new long[BATCH_COUNT];
+    var sink = 0;
+    var input = 0;
+    for(var batch = 0; batch < BATCH_COUNT; batch++) {
+      var start = System.nanoTime();
+      for(var i = 0; i < BATCH; i++) {
+        sink += matcher.match(inputs[input], bindings);
+        input = (input + 1) % inputs.length;
+      }
+      times[batch] = System.nanoTime() - start;
+    }
+    if (sink == 42) {  // keep the results alive
+      System.out.print("");
+    }
+    var steady = median(times, BATCH_COUNT - 20, BATCH_COUNT);
+    var batch = BATCH_COUNT - 5;
+    while (batch > 0 && median(times, batch - 1, batch + 4) <= steady * 1.5) {
+      batch--;
+    }
+    return new WarmUp((long) batch * BATCH, (double) steady / BATCH);
+  }
+
+  private static long median(long[] times, int from, int to) {
+    var range = Arrays.copyOfRange(times, from, to);
+    Arrays.sort(range);
+    return range[range.length / 2];
+  }
+
+  static String run(String strategy, int width, int depth) throws Throwable {
+    var cases = cases(width, depth);
+    var inputs = inputs(depth);
+    var bindings = new Object[1 << (depth + 1)];
+
+    var start = Snapshot.now();
+    var root = PatternTrees.createTree(Expr.class, cases);
+    var tree = Snapshot.now().minus(start);
+
+    var startBuild = Snapshot.now();
+    Matcher matcher;
+    try {
+      matcher = matcher(strategy, root);
+    } catch (IllegalArgumentException e) {  // the method is too large to be compiled by javac
+      return row(strategy, width, depth, tree) + ",failed: " + e.getMessage().lines().skip(1).findFirst().orElse("");
+    }
+    var build = Snapshot.now().minus(startBuild);
+    if (matcher == null) {
+      return row(strategy, width, depth, tree) + String.format(Locale.ROOT, ",%.3f,%d,-,%d,%d,%d,-,-",
+          build.nanos / 1e6, build.allocatedBytes / 1_024, build.loadedClasses, build.metaspaceBytes / 1_024, build.codeCacheBytes / 1_024);
+    }
+    matcher.match(inputs[0], bindings);
+    var firstMatch = Snapshot.now().minus(startBuild);
+
+    var warmUp = warmUp(matcher, inputs, bindings);
+    var total = Snapshot.now().minus(startBuild);
+    return row(strategy, width, depth, tree) + String.format(Locale.ROOT, ",%.3f,%d,%.3f,%d,%d,%d,%d,%.1f",
+        build.nanos / 1e6, build.allocatedBytes / 1_024, firstMatch.nanos / 1e6,
+        firstMatch.loadedClasses, firstMatch.metaspaceBytes / 1_024, total.codeCacheBytes / 1_024,
+        warmUp.invocations, warmUp.nanosPerMatch);
+  }
+
+  private static String row(String strategy, int width, int depth, Snapshot tree) {
+    return String.format(Locale.ROOT, "%s,%d,%d,%.3f,%d", strategy, width, depth, tree.nanos / 1e6, tree.allocatedBytes / 1_024);
+  }
+
+  public static void main(String[] args) throws Throwable {
+    var strategies = args.length == 0? STRATEGIES: List.of(args);
+    System.out.println("strategy,width,depth,treeMs,treeKB,buildMs,buildKB,firstMatchMs,classes,metaspaceKB,codeCacheKB,warmUpInvocations,steadyNsPerMatch");
+    for(var strategy: strategies) {
+      for(var depth: DEPTHS) {
+        for(var width: WIDTHS) {
+          System.out.println(run(strategy, width, depth));
+        }
+      }
+    }
+  }
+}
@@ -0,0 +1,42 @@
+package com.github.forax.patterntree;
+
+import com.github.forax.patterntree.StartupBenchmark.Expr;
+import com.github.forax.patterntree.StartupBenchmark.Interpreter;
+import org.junit.jupiter.api.Test;
+
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class StartupBenchmarkTest {
+  // the strategies that match, the other ones are checked against the interpreter
+  private static final List<String> STRATEGIES = List.of("bytecode", "shared", "callsite", "combinator");
+
+  @Test
+  public void strategiesAgreeWithTheInterpreter() throws Throwable {
+    for(var depth = 1; depth <= 3; depth++) {
+      for(var width: new int[] { 8, 64 }) {
+        var root = PatternTrees.createTree(Expr.class, StartupBenchmark.cases(width, depth));
+        var inputs = StartupBenchmark.inputs(depth);
+        for(var strategy: STRATEGIES) {
+          var matcher = StartupBenchmark.matcher(strategy, root);
+          for(var input: inputs) {
+            var expectedBindings = new Object[1 << (depth + 1)];
+            var expected = Interpreter.match(root, input, expectedBindings);
+            var bindings = new Object[1 << (depth + 1)];
+            var index = matcher.match(input, bindings);
+            var message = strategy + " width " + width + " depth " + depth + " input " + input;
+            assertEquals(expected, index, message);
+            assertArrayEquals(expectedBindings, bindings, message);
+          }
+        }
+      }
+    }
+  }
+
+  @Test
+  public void textDoesNotMatch() {
+    var root = PatternTrees.createTree(Expr.class, StartupBenchmark.cases(8, 1));
+    assertNull(StartupBenchmark.matcher("text", root));
+  }
+}